@@ -10,6 +10,17 @@ import java.util.*;
  */
 public class HighScoreData extends ArrayList<HighScore> {
 
+	// Constants
+
+	/** Best scores ever achieved */
+	public static final int WINDOW_ALL_TIME = 0;
+
+	/** Best scores achieved today */
+	public static final int WINDOW_DAILY = 1;
+
+	/** Best scores achieved in the last seven days */
+	public static final int WINDOW_WEEKLY = 2;
+
 	// Members
 	private int gameId;
 
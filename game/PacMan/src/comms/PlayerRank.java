@@ -0,0 +1,76 @@
+package comms;
+
+/**
+ * Contains a player's rating and position among all rated players.
+ */
+public class PlayerRank {
+	
+	// Members
+	private int mRating;
+	private int mRank;
+	private int mPlayerCount;
+	
+	/**
+	 * Constructor.
+	 * @param rating The player's rating, or -1 if the player is not rated.
+	 * @param rank The player's position, or 0 if the player is not rated.
+	 * @param playerCount The number of rated players.
+	 */
+	public PlayerRank(int rating, int rank, int playerCount) {
+		mRating = rating;
+		mRank = rank;
+		mPlayerCount = playerCount;
+	}
+	
+	/**
+	 * Get the player's rating.
+	 * @return The player's rating, or -1 if the player is not rated.
+	 */
+	public int getRating() { return mRating; }
+	
+	/**
+	 * Get the player's position among all rated players.
+	 * @return The player's position, or 0 if the player is not rated.
+	 */
+	public int getRank() { return mRank; }
+	
+	/**
+	 * Get the number of rated players.
+	 * @return The number of rated players.
+	 */
+	public int getPlayerCount() { return mPlayerCount; }
+	
+	/**
+	 * Check if the player has been rated.
+	 * @return True if the player has finished a rated game.
+	 */
+	public boolean isRated() { return mRank > 0; }
+	
+	/**
+	 * Get the player's position as a pre-formatted string.
+	 * @return The player's position as a pre-formatted string.
+	 */
+	public String getRankString() {
+		if (!isRated()) return "Unrated";
+		
+		return mRank + " of " + mPlayerCount + " (" + mRating + ")";
+	}
+	
+	/**
+	 * Return a message-ready version of the object, in the format
+	 * rating,rank,playercount
+	 * @return A message-ready representation of the object.
+	 */
+	@Override
+	public String toString() {
+		StringBuilder builder = new StringBuilder();
+		
+		builder.append(mRating);
+		builder.append(",");
+		builder.append(mRank);
+		builder.append(",");
+		builder.append(mPlayerCount);
+		
+		return builder.toString();
+	}
+}
@@ -0,0 +1,457 @@
+package comms;
+
+import java.net.*;
+import java.nio.*;
+import java.nio.charset.*;
+
+/**
+ * Encodes and decodes messages on the wire.  Mirrors the server's protocol
+ * implementation; the two must be kept in step.  Two protocols are supported:
+ *
+ * Text (version 1): one message per line, formatted as from,to,type:data.
+ * Understood by all clients and used by every connection until the client
+ * negotiates otherwise during the handshake.
+ *
+ * Binary (version 2): length-prefixed frames with a fixed-width header.
+ * Frame format: length (2 bytes, unsigned, counts the bytes that follow),
+ * from (4), to (4), type (2), payload.  The payload is encoded with a codec
+ * chosen from the header, so that common structured data (sprite positions,
+ * peer lists, results and high scores) is sent as binary fields rather than
+ * as text.  Both ends convert payloads to and from the text data format, so
+ * text and binary clients can share a game.
+ *
+ * Negotiation: after receiving the handshake, a client that supports the
+ * binary protocol sends a handshake message to the server containing the
+ * highest version it supports and sends nothing else until it receives a
+ * reply.  Every byte the client sends after that message uses the agreed
+ * protocol.  The server replies with a text handshake containing the agreed
+ * version, and every byte the server sends after the reply uses that
+ * protocol.
+ */
+public class Protocol {
+
+	// Constants
+
+	/** Newline-delimited text protocol */
+	public static final int VERSION_TEXT = 1;
+
+	/** Length-prefixed binary protocol */
+	public static final int VERSION_BINARY = 2;
+
+	/** Highest protocol version supported by the client */
+	public static final int VERSION = VERSION_BINARY;
+
+	/** Character set used to encode text */
+	public static final Charset CHARSET = Charset.forName("UTF-8");
+
+	/** Text message delimiter */
+	public static final byte DELIMITER = '\n';
+
+	/** Size of the binary frame header in bytes, including the length field */
+	public static final int HEADER_SIZE = 12;
+
+	/** Size of the binary frame length field in bytes */
+	public static final int LENGTH_SIZE = 2;
+
+	/** Maximum size of a binary frame in bytes, including the length field */
+	public static final int MAX_FRAME_SIZE = 0xFFFF + LENGTH_SIZE;
+
+	/** Type of the game message that carries sprite positions; see GameMessage */
+	public static final int MESSAGE_SPRITE_DATA = 1;
+
+	/** Sprite directions, in the order in which they are numbered on the wire */
+	private static final String[] DIRECTIONS = { "NONE", "UP", "DOWN", "LEFT", "RIGHT" };
+
+	// Payload codecs
+	private static final int CODEC_STRING = 0;
+	private static final int CODEC_INT = 1;
+	private static final int CODEC_PAIR_LIST = 2;
+	private static final int CODEC_RESULT_LIST = 3;
+	private static final int CODEC_GAME_STATS = 4;
+	private static final int CODEC_SPRITE_DATA = 5;
+	private static final int CODEC_SCORE_REQUEST = 6;
+
+	/**
+	 * Constructor.  Private to prevent creation.
+	 */
+	private Protocol() { }
+
+	/**
+	 * Decode a line of text into a message.
+	 * @param bytes Array containing the line.
+	 * @param offset Offset of the line in the array.
+	 * @param length Length of the line, excluding the delimiter.
+	 * @return The message, or null if the line does not contain a valid header.
+	 */
+	public static Message decodeLine(byte[] bytes, int offset, int length) {
+
+		String line = new String(bytes, offset, length, CHARSET);
+
+		// Break message into header and its subcomponents
+		int split = line.indexOf(':');
+		String header[] = (split < 0 ? line : line.substring(0, split)).split(",");
+
+		if (header.length != 3) return null;
+
+		try {
+			int from = Integer.parseInt(header[0]);
+			int to = Integer.parseInt(header[1]);
+			int type = Integer.parseInt(header[2]);
+			String data = (split < 0 ? "" : line.substring(split + 1));
+
+			return new Message(from, to, type, data);
+		} catch (NumberFormatException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Encode a message as a line of text, including the delimiter.
+	 * @param message The message to encode.
+	 * @return The encoded message.
+	 */
+	public static byte[] encodeLine(Message message) {
+		byte[] text = message.toString().getBytes(CHARSET);
+		byte[] line = new byte[text.length + 1];
+
+		System.arraycopy(text, 0, line, 0, text.length);
+		line[text.length] = DELIMITER;
+
+		return line;
+	}
+
+	/**
+	 * Decode a binary frame from the buffer.  The buffer must be in read mode.
+	 * If the buffer contains a complete frame, the frame is consumed;
+	 * otherwise the buffer is left untouched.
+	 * @param buffer The buffer to decode from.
+	 * @return The message, or null if the buffer does not yet contain a
+	 * complete frame.
+	 * @throws ProtocolException Thrown if the frame is malformed.
+	 */
+	public static Message decodeFrame(ByteBuffer buffer) throws ProtocolException {
+
+		if (buffer.remaining() < LENGTH_SIZE) return null;
+
+		int start = buffer.position();
+		int length = buffer.getShort(start) & 0xFFFF;
+
+		if (length < HEADER_SIZE - LENGTH_SIZE) {
+			throw new ProtocolException("Invalid frame length " + length);
+		}
+
+		if (buffer.remaining() < LENGTH_SIZE + length) return null;
+
+		int from = buffer.getInt(start + 2);
+		int to = buffer.getInt(start + 6);
+		int type = buffer.getShort(start + 10);
+
+		// Decode the payload from a view of this frame only
+		ByteBuffer payload = buffer.duplicate();
+		payload.position(start + HEADER_SIZE);
+		payload.limit(start + LENGTH_SIZE + length);
+
+		buffer.position(start + LENGTH_SIZE + length);
+
+		try {
+			return new Message(from, to, type, decodePayload(getCodec(from, to, type), payload));
+		} catch (RuntimeException e) {
+			throw new ProtocolException("Invalid payload for message type " + type);
+		}
+	}
+
+	/**
+	 * Encode a message as a binary frame.
+	 * @param message The message to encode.
+	 * @return The encoded message, or null if the message data cannot be
+	 * represented in the binary protocol.
+	 */
+	public static byte[] encodeFrame(Message message) {
+
+		String data = message.getData();
+
+		// Large enough for the worst case of any codec
+		ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + (data.length() * 4) + 16);
+
+		try {
+			buffer.position(HEADER_SIZE);
+			encodePayload(getCodec(message.getFrom(), message.getTo(), message.getType()), data, buffer);
+		} catch (RuntimeException e) {
+			util.Debug.print("Cannot encode message: " + message);
+			return null;
+		}
+
+		int size = buffer.position();
+
+		if (size > MAX_FRAME_SIZE) return null;
+
+		buffer.putShort(0, (short)(size - LENGTH_SIZE));
+		buffer.putInt(2, message.getFrom());
+		buffer.putInt(6, message.getTo());
+		buffer.putShort(10, (short)message.getType());
+
+		byte[] frame = new byte[size];
+		System.arraycopy(buffer.array(), 0, frame, 0, size);
+
+		return frame;
+	}
+
+	/**
+	 * Encode a message in the specified protocol.
+	 * @param message The message to encode.
+	 * @param version The protocol version.
+	 * @return The encoded message, or null if it cannot be encoded.
+	 */
+	public static byte[] encode(Message message, int version) {
+		if (version >= VERSION_BINARY) return encodeFrame(message);
+		return encodeLine(message);
+	}
+
+	/**
+	 * Choose the payload codec for a message.  Messages to the server are
+	 * requests, messages from the server are responses, and anything else is
+	 * a game message relayed between clients.
+	 * @param from Source id.
+	 * @param to Destination id.
+	 * @param type Type of the message.
+	 * @return The codec.
+	 */
+	private static int getCodec(int from, int to, int type) {
+		if (to == Message.ADDRESS_SERVER) {
+			if (isType(type, ServerMessage.ServerMessageType.HANDSHAKE,
+					ServerMessage.ServerMessageType.JOIN_GAME,
+					ServerMessage.ServerMessageType.GAME_STATS)) {
+				return CODEC_INT;
+			} else if (isType(type, ServerMessage.ServerMessageType.HIGH_SCORES)) {
+				return CODEC_SCORE_REQUEST;
+			} else if (isType(type, ServerMessage.ServerMessageType.END_GAME)) {
+				return CODEC_RESULT_LIST;
+			}
+		} else if (from == Message.ADDRESS_SERVER) {
+			if (isType(type, ServerMessage.ServerMessageType.HANDSHAKE,
+					ServerMessage.ServerMessageType.JOIN_GAME,
+					ServerMessage.ServerMessageType.CLIENT_FAILED)) {
+				return CODEC_INT;
+			} else if (isType(type, ServerMessage.ServerMessageType.PEER_LIST,
+					ServerMessage.ServerMessageType.HIGH_SCORES)) {
+				return CODEC_PAIR_LIST;
+			} else if (isType(type, ServerMessage.ServerMessageType.GAME_STATS)) {
+				return CODEC_GAME_STATS;
+			}
+		} else if (type == MESSAGE_SPRITE_DATA) {
+			return CODEC_SPRITE_DATA;
+		}
+
+		return CODEC_STRING;
+	}
+
+	/**
+	 * Check if a message type is one of the specified server message types.
+	 * @param type The message type.
+	 * @param types The server message types to compare against.
+	 * @return True if the type matches one of the server message types.
+	 */
+	private static boolean isType(int type, ServerMessage.ServerMessageType... types) {
+		for (int i = 0; i < types.length; ++i) {
+			if (types[i].type() == type) return true;
+		}
+
+		return false;
+	}
+
+	/**
+	 * Convert text message data into a binary payload.
+	 * @param codec The codec to use.
+	 * @param data The text data.
+	 * @param out Buffer to write the payload to.
+	 */
+	private static void encodePayload(int codec, String data, ByteBuffer out) {
+		switch (codec) {
+			case CODEC_INT:
+
+				// id
+				out.putInt(Integer.parseInt(data));
+				break;
+
+			case CODEC_PAIR_LIST: {
+
+				// count, then int,string pairs
+				String split[] = data.split(",");
+				int count = (data.length() == 0 ? 0 : split.length / 2);
+
+				out.putShort((short)count);
+
+				for (int i = 0; i < count; ++i) {
+					out.putInt(Integer.parseInt(split[i * 2]));
+					putString(out, split[(i * 2) + 1]);
+				}
+				break;
+			}
+
+			case CODEC_RESULT_LIST: {
+
+				// count, then clientid,score pairs
+				String split[] = data.split(";");
+				int count = (data.length() == 0 ? 0 : split.length);
+
+				out.putShort((short)count);
+
+				for (int i = 0; i < count; ++i) {
+					String result[] = split[i].split(",");
+					out.putInt(Integer.parseInt(result[0]));
+					out.putInt(Integer.parseInt(result[1]));
+				}
+				break;
+			}
+
+			case CODEC_GAME_STATS: {
+
+				// gameid, totalduration, timesplayed
+				String split[] = data.split(",");
+				out.putInt(Integer.parseInt(split[0]));
+				out.putLong(Long.parseLong(split[1]));
+				out.putInt(Integer.parseInt(split[2]));
+				break;
+			}
+
+			case CODEC_SCORE_REQUEST: {
+
+				// gameid, then window if one was asked for
+				String split[] = data.split(",");
+				out.putInt(Integer.parseInt(split[0]));
+
+				if (split.length > 1) out.put(Byte.parseByte(split[1]));
+				break;
+			}
+
+			case CODEC_SPRITE_DATA: {
+
+				// x, y, direction, buffered direction
+				String split[] = data.split(",");
+				out.putShort(Short.parseShort(split[0]));
+				out.putShort(Short.parseShort(split[1]));
+				out.put(getDirection(split[2]));
+				out.put(getDirection(split[3]));
+				break;
+			}
+
+			default:
+				putString(out, data);
+				break;
+		}
+	}
+
+	/**
+	 * Convert a binary payload into text message data.
+	 * @param codec The codec to use.
+	 * @param in Buffer containing only the payload.
+	 * @return The text data.
+	 */
+	private static String decodePayload(int codec, ByteBuffer in) {
+		StringBuilder data = new StringBuilder();
+
+		switch (codec) {
+			case CODEC_INT:
+				data.append(in.getInt());
+				break;
+
+			case CODEC_PAIR_LIST: {
+				int count = in.getShort() & 0xFFFF;
+
+				for (int i = 0; i < count; ++i) {
+					if (i > 0) data.append(",");
+					data.append(in.getInt());
+					data.append(",");
+					data.append(getString(in));
+				}
+				break;
+			}
+
+			case CODEC_RESULT_LIST: {
+				int count = in.getShort() & 0xFFFF;
+
+				for (int i = 0; i < count; ++i) {
+					if (i > 0) data.append(";");
+					data.append(in.getInt());
+					data.append(",");
+					data.append(in.getInt());
+				}
+				break;
+			}
+
+			case CODEC_GAME_STATS:
+				data.append(in.getInt());
+				data.append(",");
+				data.append(in.getLong());
+				data.append(",");
+				data.append(in.getInt());
+				break;
+
+			case CODEC_SCORE_REQUEST:
+				data.append(in.getInt());
+
+				if (in.hasRemaining()) {
+					data.append(",");
+					data.append(in.get());
+				}
+				break;
+
+			case CODEC_SPRITE_DATA:
+				data.append(in.getShort());
+				data.append(",");
+				data.append(in.getShort());
+				data.append(",");
+				data.append(DIRECTIONS[in.get()]);
+				data.append(",");
+				data.append(DIRECTIONS[in.get()]);
+				break;
+
+			default:
+				data.append(getString(in));
+				break;
+		}
+
+		if (in.hasRemaining()) throw new IllegalArgumentException("Trailing payload data");
+
+		return data.toString();
+	}
+
+	/**
+	 * Write a length-prefixed UTF-8 string to the buffer.
+	 * @param out The buffer to write to.
+	 * @param value The string to write.
+	 */
+	private static void putString(ByteBuffer out, String value) {
+		byte[] bytes = value.getBytes(CHARSET);
+
+		out.putShort((short)bytes.length);
+		out.put(bytes);
+	}
+
+	/**
+	 * Read a length-prefixed UTF-8 string from the buffer.
+	 * @param in The buffer to read from.
+	 * @return The string.
+	 */
+	private static String getString(ByteBuffer in) {
+		int length = in.getShort() & 0xFFFF;
+		byte[] bytes = new byte[length];
+
+		in.get(bytes);
+
+		return new String(bytes, CHARSET);
+	}
+
+	/**
+	 * Get the wire number of a sprite direction.
+	 * @param name The name of the direction.
+	 * @return The number of the direction.
+	 */
+	private static byte getDirection(String name) {
+		for (int i = 0; i < DIRECTIONS.length; ++i) {
+			if (DIRECTIONS[i].equals(name)) return (byte)i;
+		}
+
+		throw new IllegalArgumentException("Unknown direction " + name);
+	}
+}
@@ -2,6 +2,7 @@ package comms;
 
 import java.io.*;
 import java.net.*;
+import java.nio.*;
 
 /**
  * Handles all socket code and communicates with server.  Can send all generic
@@ -20,11 +21,21 @@ public class Server {
 	
 	/** Time between pings */
 	public static final long PING_TIME = 4000;				
+
+	/** Time to wait for the server to agree a protocol before assuming text */
+	public static final long NEGOTIATION_TIMEOUT = 10000;
+
+	/** Initial size of the read buffer */
+	private static final int BUFFER_SIZE = 1024;
 	
 	// Members
 	private static Socket mSocket = null;
-	private static PrintWriter mToServer = null;
-	private static BufferedReader mFromServer = null;
+	private static OutputStream mToServer = null;
+	private static InputStream mFromServer = null;
+	private static ByteBuffer mReadBuffer = ByteBuffer.allocate(BUFFER_SIZE);
+	private static int mReadProtocol;
+	private static int mWriteProtocol;
+	private static boolean mNegotiating;
 
 	private static MessageQueue mMessageQueue = new MessageQueue();
 
@@ -61,13 +72,17 @@ public class Server {
 			mSocket = new Socket(host, port);
 			mSocket.setTcpNoDelay(true);
 
-			mToServer = new PrintWriter(mSocket.getOutputStream(), true);
-			mFromServer = new BufferedReader(new InputStreamReader(mSocket.getInputStream()));
+			mToServer = new BufferedOutputStream(mSocket.getOutputStream());
+			mFromServer = mSocket.getInputStream();
+			mReadBuffer.clear();
+			mReadProtocol = Protocol.VERSION_TEXT;
+			mWriteProtocol = Protocol.VERSION_TEXT;
 			mLastMessageTime = System.currentTimeMillis();
 			mIsDead = false;
 			mPingTime = System.currentTimeMillis();
 
 			handshake();
+			negotiateProtocol();
 
 			raiseEvent(EventType.CONNECTED);
 			
@@ -147,7 +162,7 @@ public class Server {
 	 * Send a ping to the server if the timeout has occurred.
 	 */
 	private static void ping() {
-		if (!mIsDead) {
+		if (!mIsDead && !mNegotiating) {
 
 			// Timed out?
 			if (System.currentTimeMillis() - mPingTime > PING_TIME) {
@@ -290,6 +305,30 @@ public class Server {
 		}
 	}
 
+	/**
+	 * Agree the protocol to use with the server.  Sends the highest version
+	 * supported and waits for the server's reply.  Servers that do not
+	 * recognise the request never reply, in which case the connection stays
+	 * on the text protocol.
+	 */
+	private static void negotiateProtocol() {
+		mNegotiating = true;
+
+		sendMessage(new ServerMessage(mClientId,
+				ServerMessage.ServerMessageType.HANDSHAKE,
+				String.valueOf(Protocol.VERSION)));
+
+		try {
+
+			// The reply switches the protocol as soon as it is read
+			waitForMessage(ServerMessage.ServerMessageType.HANDSHAKE.type(), NEGOTIATION_TIMEOUT);
+		} catch (ServerWaitTimeoutException e) {
+			util.Debug.print("Server does not support protocol negotiation");
+		}
+
+		mNegotiating = false;
+	}
+
 	/**
 	 * Wait for the peer list from the server.
 	 * @param waitTime The amount of time to wait before giving up.  0 to wait
@@ -413,8 +452,18 @@ public class Server {
 	 * @param message The message to send.
 	 * @return True if the message sent OK.
 	 */
-	public static boolean sendMessage(Message message) {
-		mToServer.println(message.toString());
+	public static synchronized boolean sendMessage(Message message) {
+		byte[] bytes = Protocol.encode(message, mWriteProtocol);
+
+		if (bytes == null) return false;
+
+		try {
+			mToServer.write(bytes);
+			mToServer.flush();
+		} catch (IOException e) {
+			util.Debug.print("Cannot send message: " + e);
+			return false;
+		}
 
 		raiseEvent(EventType.SENT_MESSAGE);
 		return true;
@@ -422,40 +471,101 @@ public class Server {
 
 	/**
 	 * Get a message from the server.
-	 * @return The message.
+	 * @return The message, or null if no complete message has arrived.
 	 */
 	private static Message getMessageFromSocket() {
-		String input = null;
+		Message message = null;
 
 		try {
-			if (mFromServer.ready()) {
-				input = mFromServer.readLine();
+			message = decodeMessage();
+
+			// Read whatever has arrived without blocking
+			int available = (message == null ? mFromServer.available() : 0);
+
+			if (available > 0) {
+				if (mReadBuffer.remaining() < available) {
+					ByteBuffer buffer = ByteBuffer.allocate(mReadBuffer.position() + available + BUFFER_SIZE);
+					mReadBuffer.flip();
+					buffer.put(mReadBuffer);
+					mReadBuffer = buffer;
+				}
+
+				int count = mFromServer.read(mReadBuffer.array(), mReadBuffer.position(), available);
+
+				if (count > 0) mReadBuffer.position(mReadBuffer.position() + count);
+
 				mLastMessageTime = System.currentTimeMillis();
 
-				raiseEvent(EventType.RECEIVED_MESSAGE);
+				message = decodeMessage();
 			}
+		} catch (ProtocolException e) {
+
+			// Stream is corrupt and cannot be recovered
+			util.Debug.print("Cannot decode message: " + e);
+
+			mReadBuffer.clear();
+			mIsDead = true;
+			raiseEvent(EventType.DIED);
 		} catch (IOException e) {
 			// Ignore the exception
 		}
-		
+
+		if (message != null) raiseEvent(EventType.RECEIVED_MESSAGE);
+
+		return message;
+	}
+
+	/**
+	 * Decode the next message from the read buffer.
+	 * @return The message, or null if the buffer does not contain a complete
+	 * message.
+	 * @throws ProtocolException Thrown if a binary frame is malformed.
+	 */
+	private static Message decodeMessage() throws ProtocolException {
 		Message message = null;
-		
-		if (input != null) {
-			
-			// Split up message components
-			String split[] = input.split(":");
-			String header[] = split[0].split(",");
 
-			int from = Integer.parseInt(header[0]);
-			int to = Integer.parseInt(header[1]);
-			int type = Integer.parseInt(header[2]);
-			String data = "";
+		mReadBuffer.flip();
 
-			if (split.length > 1) data = split[1];
-			
-			message = new Message(from, to, type, data);
+		try {
+			while (message == null && mReadBuffer.hasRemaining()) {
+				if (mReadProtocol >= Protocol.VERSION_BINARY) {
+					message = Protocol.decodeFrame(mReadBuffer);
+
+					if (message == null) break;
+				} else {
+					byte[] bytes = mReadBuffer.array();
+					int start = mReadBuffer.position();
+					int end = start;
+
+					while (end < mReadBuffer.limit() && bytes[end] != Protocol.DELIMITER) ++end;
+
+					if (end == mReadBuffer.limit()) break;
+
+					mReadBuffer.position(end + 1);
+
+					int length = end - start;
+					if (length > 0 && bytes[end - 1] == '\r') --length;
+
+					message = Protocol.decodeLine(bytes, start, length);
+				}
+			}
+		} finally {
+			mReadBuffer.compact();
 		}
-		
+
+		// Server has agreed the protocol; everything after its reply uses it
+		if (message != null && mNegotiating &&
+				message.getType() == ServerMessage.ServerMessageType.HANDSHAKE.type()) {
+			try {
+				int version = Math.min(Integer.parseInt(message.getData()), Protocol.VERSION);
+
+				mReadProtocol = version;
+				mWriteProtocol = version;
+			} catch (NumberFormatException e) {
+				util.Debug.print("Invalid protocol version: " + message.getData());
+			}
+		}
+
 		return message;
 	}
 
@@ -481,7 +591,7 @@ public class Server {
 			
 			// Exceeded wait time?
 			if (waitTime > 0) {
-				if (startTime + waitTime > System.currentTimeMillis()) {
+				if (System.currentTimeMillis() - startTime > waitTime) {
 					throw new ServerWaitTimeoutException("Timeout waiting for server response.");
 				}
 			}
@@ -570,6 +680,34 @@ public class Server {
 		return null;
 	}
 
+	/**
+	 * Get the player's rating and position among all rated players.
+	 * @return The player's rank, or null if the player is not logged in.
+	 */
+	public static PlayerRank getPlayerRank() {
+
+		sendMessage(new ServerMessage(mClientId,
+				ServerMessage.ServerMessageType.PLAYER_RANK, ""));
+
+		try {
+			Message msg = Server.waitForMessage(ServerMessage.ServerMessageType.PLAYER_RANK.type(), 0);
+
+			if (msg.getData().length() == 0) return null;
+
+			String data[] = msg.getData().split(",");
+
+			int rating = Integer.parseInt(data[0]);
+			int rank = Integer.parseInt(data[1]);
+			int playerCount = Integer.parseInt(data[2]);
+
+			return new PlayerRank(rating, rank, playerCount);
+		} catch (ServerWaitTimeoutException e) {
+			// Exception cannot be thrown as we wait forever
+		}
+		
+		return null;
+	}
+
 	/**
 	 * Notify server that the game has ended, and supply all scores associated
 	 * with the game.
@@ -583,12 +721,13 @@ public class Server {
 	/**
 	 * Get the high scores for a specific game.
 	 * @param gameId The ID of the game the user wants highscores for.
+	 * @param window One of the HighScoreData window constants.
 	 * @return A highscore data object containing the high scores for the requested game.
 	 */
-	public static HighScoreData getHighScoreData(int gameId) {
+	public static HighScoreData getHighScoreData(int gameId, int window) {
 
 		// Send request for message
-		sendMessage(new ServerMessage(mClientId, ServerMessage.ServerMessageType.HIGH_SCORES, String.valueOf(gameId)));
+		sendMessage(new ServerMessage(mClientId, ServerMessage.ServerMessageType.HIGH_SCORES, gameId + "," + window));
 
 		HighScoreData scores = new HighScoreData(gameId);
 		
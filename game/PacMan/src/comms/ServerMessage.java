@@ -22,7 +22,8 @@ public class ServerMessage extends Message {
 		HIGH_SCORES (-11),
 		PING (-12),
 		CLIENT_FAILED (-13),
-		GAME_STATS(-14);
+		GAME_STATS(-14),
+		PLAYER_RANK(-15);
                 
 		private final int mType;
 
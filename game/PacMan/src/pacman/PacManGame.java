@@ -84,6 +84,13 @@ public class PacManGame {
 			util.Debug.print(e.toString());
 		}
 
+		// An empty peer list means the server abandoned the session
+		if ((peerList == null) || (peerList.getPeerDataCount() == 0)) {
+			mGame.shutdown();
+			new ui.Menu();
+			return;
+		}
+
 		mGame.mMap = new Map(mGame.mFrame.createImage(Map.getWidth(), Map.getHeight()));
 		mGame.mMessageHandler = new MessageHandler();
 
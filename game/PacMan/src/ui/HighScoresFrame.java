@@ -3,6 +3,8 @@ package ui;
 import java.awt.*;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
+import java.awt.event.ItemEvent;
+import java.awt.event.ItemListener;
 import javax.swing.*;
 import comms.*;
 
@@ -13,6 +15,14 @@ import comms.*;
  * @author vxp685
  */
 public class HighScoresFrame extends ClientFrame {
+
+	/** Names of the windows of time that scores can be shown for */
+	private static final String[] WINDOW_NAMES = { "All Time", "This Week", "Today" };
+
+	/** Windows of time that scores can be shown for, in the order they are named */
+	private static final int[] WINDOWS = { HighScoreData.WINDOW_ALL_TIME, HighScoreData.WINDOW_WEEKLY,
+			HighScoreData.WINDOW_DAILY };
+
 	// Declaring buttons, panels and text areas to be used in HighScoresFrame
 
 	private JButton okButton; // Variable to represent a button at the bottom of the screen. Will take the user back to the menu interface.
@@ -20,6 +30,7 @@ public class HighScoresFrame extends ClientFrame {
 	private JPanel topPanel;
 	private JLabel gameLabel; // Will be shown at the top of the HighScoresFrame.
 	private JTextArea gameTextArea; // Will store the name of the game chosen in the menu interface
+	private JComboBox<String> windowComboBox; // Chooses the window of time that scores are shown for
 	private DialogPanel dialogPanel; // Will be used to implement all other labels and textAreas
 
 	/**
@@ -47,11 +58,21 @@ public class HighScoresFrame extends ClientFrame {
 		gameLabel = new JLabel("Game");
 		gameTextArea = new JTextArea();
 		gameTextArea.setBounds(210, 5, 90, 30);
+		windowComboBox = new JComboBox<String>(WINDOW_NAMES);
+
+		windowComboBox.addItemListener(new ItemListener() {
+			public void itemStateChanged(ItemEvent e) {
+				if (e.getStateChange() == ItemEvent.SELECTED) {
+					dialogPanel.showHighScores(WINDOWS[windowComboBox.getSelectedIndex()]);
+				}
+			}
+		});
 
 		// Creating new JPanel object and adding the label/text area to it.
 		topPanel = new JPanel();
 		topPanel.add(gameLabel);
 		topPanel.add(gameTextArea);
+		topPanel.add(windowComboBox);
 
 
 		// Setting the top and bottom panels to have borders.
@@ -79,6 +100,7 @@ public class HighScoresFrame extends ClientFrame {
 		// Declaring the JLabels and JTextAreas to be used
 		JLabel playerNameLabel, scoreLabel, gameStatLabel, timesPlayedLabel, totalPlayedLabel;
 		JTextArea playerTextArea, scoreTextArea, timesplayedTextArea, totalPlayedTextArea;
+		int gameId;
 
 		/**
 		 * Constructor.
@@ -86,6 +108,8 @@ public class HighScoresFrame extends ClientFrame {
 		 */
 		public DialogPanel(int gameId) {
 
+			this.gameId = gameId;
+
 			//Creating new JLabel objects and setting their appearance
 			playerNameLabel = new JLabel("Player Name");
 			scoreLabel = new JLabel("Score");
@@ -110,14 +134,7 @@ public class HighScoresFrame extends ClientFrame {
 			add(timesplayedTextArea);
 			add(totalPlayedTextArea);
 
-			// Fetch high scores
-			HighScoreData scores = Server.getHighScoreData(gameId);
-
-			// Bind high scores
-			for (HighScore score : scores) {
-				playerTextArea.setText(playerTextArea.getText() + score.getUsername() + "\n");
-				scoreTextArea.setText(scoreTextArea.getText() + score.getScore() + "\n");
-			}
+			showHighScores(HighScoreData.WINDOW_ALL_TIME);
 
 			// Fetch game stats
 			GameStats stats = Server.getGameStats(gameId);
@@ -127,6 +144,25 @@ public class HighScoresFrame extends ClientFrame {
 			totalPlayedTextArea.setText(stats.getTotalDurationString());
 		}
 
+		/**
+		 * Fetch and show the high scores for a window of time.
+		 * @param window One of the HighScoreData window constants.
+		 */
+		public void showHighScores(int window) {
+
+			// Fetch high scores
+			HighScoreData scores = Server.getHighScoreData(gameId, window);
+
+			playerTextArea.setText("");
+			scoreTextArea.setText("");
+
+			// Bind high scores
+			for (HighScore score : scores) {
+				playerTextArea.setText(playerTextArea.getText() + score.getUsername() + "\n");
+				scoreTextArea.setText(scoreTextArea.getText() + score.getScore() + "\n");
+			}
+		}
+
 		/**
 		 * Method to set the layout of the labels and text areas within the
 		 * dialog panel
@@ -57,7 +57,7 @@ public class PlayerStatsFrame extends ClientFrame {
 		getContentPane().add(topPanel, BorderLayout.NORTH);
 		getContentPane().add(dialogPanel, BorderLayout.CENTER);
 		// Setting the size of the main frame and setting it to visible
-		setSize(340, 300);
+		setSize(340, 320);
 		setResizable(false);
 		setVisible(true);
 	}
@@ -71,11 +71,12 @@ public class PlayerStatsFrame extends ClientFrame {
 		// Declaring the JLabels and JTextAreas to be used
 		JLabel playerNameLabel, favouriteGameLabel, lastGameNameLabel,
 				lastGameDateLabel, timesPlayedLabel, durationPlayedLabel,
-				disconnectsLabel, gamesWonLabel, rankLabel,
+				disconnectsLabel, gamesWonLabel, rankLabel, positionLabel,
 				playerNameDataLabel, favouriteGameDataLabel,
 				lastGameNameDataLabel, lastGameDateDataLabel,
 				timesPlayedDataLabel, durationPlayedDataLabel,
-				disconnectsDataLabel, gamesWonDataLabel, rankDataLabel;
+				disconnectsDataLabel, gamesWonDataLabel, rankDataLabel,
+				positionDataLabel;
 
 		/**
 		 * Constructor.
@@ -92,9 +93,11 @@ public class PlayerStatsFrame extends ClientFrame {
 			disconnectsLabel = new JLabel("Number of Disconnects:");
 			gamesWonLabel = new JLabel("Number of Wins:");
 			rankLabel = new JLabel("Rank:");
+			positionLabel = new JLabel("Position:");
 			
 			// Fetch data
 			PlayerStats stats = Server.getPlayerStats();
+			PlayerRank rank = Server.getPlayerRank();
 			
 			// Bind data
 			playerNameDataLabel = new JLabel(stats.getUsername());
@@ -106,6 +109,7 @@ public class PlayerStatsFrame extends ClientFrame {
 			disconnectsDataLabel = new JLabel(String.valueOf(stats.getNumberOfDisconnects()));
 			gamesWonDataLabel = new JLabel(String.valueOf(stats.getNumberOfGamesWon()));
 			rankDataLabel = new JLabel(stats.getRanking());
+			positionDataLabel = new JLabel(rank != null ? rank.getRankString() : "Unrated");
 			
 			add(playerNameLabel);
 			add(favouriteGameLabel);
@@ -116,6 +120,7 @@ public class PlayerStatsFrame extends ClientFrame {
 			add(disconnectsLabel);
 			add(gamesWonLabel);
 			add(rankLabel);
+			add(positionLabel);
 			add(playerNameDataLabel);
 			add(favouriteGameDataLabel);
 			add(lastGameNameDataLabel);
@@ -125,6 +130,7 @@ public class PlayerStatsFrame extends ClientFrame {
 			add(disconnectsDataLabel);
 			add(gamesWonDataLabel);
 			add(rankDataLabel);
+			add(positionDataLabel);
 		}
 
 		/**
@@ -142,6 +148,7 @@ public class PlayerStatsFrame extends ClientFrame {
 			disconnectsLabel.setBounds(15, 130, 150, 20);
 			gamesWonLabel.setBounds(15, 150, 150, 20);
 			rankLabel.setBounds(15, 170, 150, 20);
+			positionLabel.setBounds(15, 190, 150, 20);
 			
 			playerNameDataLabel.setBounds(180, 10, 150, 20);
 			favouriteGameDataLabel.setBounds(180, 30, 150, 20);
@@ -152,6 +159,7 @@ public class PlayerStatsFrame extends ClientFrame {
 			disconnectsDataLabel.setBounds(180, 130, 150, 20);
 			gamesWonDataLabel.setBounds(180, 150, 150, 20);
 			rankDataLabel.setBounds(180, 170, 150, 20);
+			positionDataLabel.setBounds(180, 190, 150, 20);
 		}
 	}
 
@@ -0,0 +1,299 @@
+package database;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * Asynchronous front end to the database abstraction layer.  Every call runs
+ * on a small, bounded pool of database threads and returns a future, so that
+ * a slow query never holds up the thread that asked for it.  Calls that
+ * cannot be queued because the pool is saturated fail immediately rather
+ * than blocking the caller.
+ *
+ * The time from each request to its result, including any time spent
+ * waiting for a database thread, is recorded per call.  A fixed latency can
+ * be injected into every call to simulate a slow backend.
+ */
+public class AsyncDatabase {
+
+	// Constants
+
+	/** Default number of database threads */
+	public static final int DEFAULT_THREAD_COUNT = 4;
+
+	/** Default number of calls that can wait for a database thread */
+	public static final int DEFAULT_QUEUE_SIZE = 1024;
+
+	// Members
+	private static ThreadPoolExecutor mExecutor = null;
+	private static ResultWriter mResultWriter = null;
+	private static volatile long mInjectedLatency = 0;
+	private static ConcurrentHashMap<String, CallStats> mCallStats = new ConcurrentHashMap<String, CallStats>();
+
+	/**
+	 * Latency statistics for one kind of database call.
+	 */
+	public static class CallStats {
+
+		// Members
+		private String mName;
+		private AtomicLong mCount;
+		private AtomicLong mFailures;
+		private AtomicLong mTotalTime;
+		private AtomicLong mMaxTime;
+
+		/**
+		 * Constructor.
+		 * @param name The name of the call.
+		 */
+		private CallStats(String name) {
+			mName = name;
+			mCount = new AtomicLong(0);
+			mFailures = new AtomicLong(0);
+			mTotalTime = new AtomicLong(0);
+			mMaxTime = new AtomicLong(0);
+		}
+
+		/**
+		 * Record a completed call.
+		 * @param time Time in nanoseconds from request to result.
+		 * @param failed True if the call failed.
+		 */
+		private void record(long time, boolean failed) {
+			mCount.incrementAndGet();
+			mTotalTime.addAndGet(time);
+
+			if (failed) mFailures.incrementAndGet();
+
+			long max;
+
+			do {
+				max = mMaxTime.get();
+			} while ((time > max) && !mMaxTime.compareAndSet(max, time));
+		}
+
+		/**
+		 * Get the name of the call.
+		 * @return The name of the call.
+		 */
+		public String getName() { return mName; }
+
+		/**
+		 * Get the number of calls made.
+		 * @return The number of calls.
+		 */
+		public long getCount() { return mCount.get(); }
+
+		/**
+		 * Get the number of calls that failed or were rejected.
+		 * @return The number of failed calls.
+		 */
+		public long getFailures() { return mFailures.get(); }
+
+		/**
+		 * Get the mean time from request to result.
+		 * @return The mean latency in microseconds.
+		 */
+		public long getMeanLatency() {
+			long count = mCount.get();
+
+			return (count == 0 ? 0 : mTotalTime.get() / count / 1000);
+		}
+
+		/**
+		 * Get the longest time from request to result.
+		 * @return The maximum latency in microseconds.
+		 */
+		public long getMaxLatency() { return mMaxTime.get() / 1000; }
+
+		/**
+		 * Get a summary of the statistics.
+		 * @return The statistics as a string.
+		 */
+		@Override
+		public String toString() {
+			return mName + ": " + getCount() + " calls, " + getFailures() + " failed, mean " +
+					getMeanLatency() + "us, max " + getMaxLatency() + "us";
+		}
+	}
+
+	/**
+	 * Constructor.  Private to prevent creation.
+	 */
+	private AsyncDatabase() { }
+
+	/**
+	 * Create the pool of database threads and the writer that saves game
+	 * results.
+	 * @param threadCount The number of database threads.
+	 * @param queueSize The number of calls that can wait for a thread.
+	 * @param commitDelay Time in milliseconds that game results wait for
+	 * others to be written with.
+	 */
+	public static synchronized void init(int threadCount, int queueSize, long commitDelay) {
+		shutdown();
+
+		mResultWriter = new ResultWriter(commitDelay, ResultWriter.DEFAULT_QUEUE_SIZE);
+		mResultWriter.start();
+
+		final AtomicInteger threadNumber = new AtomicInteger(0);
+
+		mExecutor = new ThreadPoolExecutor(Math.max(1, threadCount), Math.max(1, threadCount),
+				0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(Math.max(1, queueSize)),
+				new ThreadFactory() {
+					public Thread newThread(Runnable task) {
+						Thread thread = new Thread(task, "Database-" + threadNumber.getAndIncrement());
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+	}
+
+	/**
+	 * Stop the database threads, waiting for queued game results to be
+	 * written.
+	 */
+	public static synchronized void shutdown() {
+		if (mExecutor != null) mExecutor.shutdown();
+		if (mResultWriter != null) mResultWriter.shutdown();
+
+		mExecutor = null;
+		mResultWriter = null;
+	}
+
+	/**
+	 * Set a delay that is added to every database call, to simulate a slow
+	 * backend.
+	 * @param latency The delay in milliseconds.
+	 */
+	public static void setInjectedLatency(long latency) { mInjectedLatency = Math.max(0, latency); }
+
+	/**
+	 * Get the statistics for every kind of call made so far.
+	 * @return The call statistics.
+	 */
+	public static List<CallStats> getCallStats() {
+		return new ArrayList<CallStats>(mCallStats.values());
+	}
+
+	/**
+	 * Get a player's data by username.
+	 * @param username The username of the player to retrieve.
+	 * @return The future player data.
+	 */
+	public static CompletableFuture<PlayerData> getPlayer(final String username) {
+		return submit("getPlayer", () -> Database.getPlayer(username));
+	}
+
+	/**
+	 * Create a player from username and password.
+	 * @param username The username of a new player.
+	 * @param password The password of a new player.
+	 * @return The future player data.
+	 */
+	public static CompletableFuture<PlayerData> register(final String username, final String password) {
+		return submit("register", () -> Database.register(username, password));
+	}
+
+	/**
+	 * Save the outcome of a game.  Results are written in groups by the
+	 * result writer rather than by the pool.
+	 * @param gameId The ID of the game.
+	 * @param winnerId The ID of the game winner (player ID).
+	 * @param startDate The date on which the game started.
+	 * @param duration The duration of the game.
+	 * @param resultList The results to save.
+	 * @return A future that completes once the results are saved.
+	 */
+	public static CompletableFuture<Void> saveGameResults(int gameId, int winnerId, long startDate,
+			long duration, GameResultList resultList) {
+		final CallStats stats = getStats("saveGameResults");
+		final long requestTime = System.nanoTime();
+
+		CompletableFuture<Void> future = getResultWriter().submit(gameId, winnerId, startDate, duration, resultList);
+
+		future.whenComplete((result, error) -> stats.record(System.nanoTime() - requestTime, error != null));
+
+		return future;
+	}
+
+	/**
+	 * Run a call on a database thread.
+	 * @param name The name of the call, used for statistics.
+	 * @param call The call to run.
+	 * @return A future that completes with the result of the call.
+	 */
+	private static <T> CompletableFuture<T> submit(String name, final Callable<T> call) {
+		final CompletableFuture<T> future = new CompletableFuture<T>();
+		final CallStats stats = getStats(name);
+		final long requestTime = System.nanoTime();
+
+		try {
+			getExecutor().execute(() -> {
+				try {
+					injectLatency();
+					future.complete(call.call());
+					stats.record(System.nanoTime() - requestTime, false);
+				} catch (Throwable e) {
+					stats.record(System.nanoTime() - requestTime, true);
+					future.completeExceptionally(e);
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			stats.record(System.nanoTime() - requestTime, true);
+			future.completeExceptionally(e);
+		}
+
+		return future;
+	}
+
+	/**
+	 * Get the statistics for a kind of call, creating them if necessary.
+	 * @param name The name of the call.
+	 * @return The statistics.
+	 */
+	private static CallStats getStats(String name) {
+		CallStats stats = mCallStats.get(name);
+
+		if (stats == null) {
+			mCallStats.putIfAbsent(name, new CallStats(name));
+			stats = mCallStats.get(name);
+		}
+
+		return stats;
+	}
+
+	/**
+	 * Get the pool of database threads, creating it with the default
+	 * settings if it has not been created yet.
+	 * @return The pool of database threads.
+	 */
+	private static synchronized ThreadPoolExecutor getExecutor() {
+		if (mExecutor == null) init(DEFAULT_THREAD_COUNT, DEFAULT_QUEUE_SIZE, ResultWriter.DEFAULT_COMMIT_DELAY);
+
+		return mExecutor;
+	}
+
+	/**
+	 * Get the writer that saves game results, creating it with the default
+	 * settings if it has not been created yet.
+	 * @return The result writer.
+	 */
+	private static synchronized ResultWriter getResultWriter() {
+		if (mResultWriter == null) init(DEFAULT_THREAD_COUNT, DEFAULT_QUEUE_SIZE, ResultWriter.DEFAULT_COMMIT_DELAY);
+
+		return mResultWriter;
+	}
+
+	/**
+	 * Wait for the injected latency, if any.  The result writer waits once
+	 * per batch.
+	 * @throws InterruptedException Thrown if the thread is interrupted.
+	 */
+	static void injectLatency() throws InterruptedException {
+		long latency = mInjectedLatency;
+
+		if (latency > 0) Thread.sleep(latency);
+	}
+}
@@ -1,15 +1,64 @@
 package database;
 
+import java.io.*;
+import java.nio.*;
+import java.nio.charset.*;
 import java.sql.*;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
 
 /**
- * Database abstraction layer.  This is currently just a dummy class that
- * simulates the behaviour of the abstraction layer by returning a set of
- * expected values.  The methods need to be replaced with actual database
- * interactions.
+ * Database abstraction layer.  Players, game history, game participants and
+ * checkpoints of the game counters are kept in an embedded LogStore.  When
+ * the database is opened the store is read once to build in-memory tables of
+ * high scores, player totals, ratings and game counters, and queries are
+ * answered from those tables rather than from the store.  The tables are
+ * updated as each game result is written.  The list of games is fixed.
  */
 public class Database {
 
+	// Constants
+
+	/** Default directory holding the database files */
+	public static final String DEFAULT_DIRECTORY = "data";
+
+	/** Record type of a player */
+	private static final int TYPE_PLAYER = 1;
+
+	/** Record type of a game history entry */
+	private static final int TYPE_GAME_HISTORY = 2;
+
+	/** Record type of a game participant */
+	private static final int TYPE_PARTICIPANT = 3;
+
+	/** Record type of a checkpoint of a game's counters */
+	private static final int TYPE_GAME_STATS = 4;
+
+	/** Time in milliseconds between checkpoints of the game counters */
+	private static final long CHECKPOINT_INTERVAL = 10000;
+
+	/** Character set used to store strings */
+	private static final Charset CHARSET = Charset.forName("UTF-8");
+
+	// Members
+	private static volatile LogStore mStore = null;
+	private static ConcurrentHashMap<String, Integer> mPlayerIds = new ConcurrentHashMap<String, Integer>();
+	private static AtomicInteger mNextPlayerId = new AtomicInteger(1);
+	private static AtomicInteger mNextGameHistoryId = new AtomicInteger(1);
+	private static ConcurrentHashMap<Integer, HighScoreTable> mHighScores = new ConcurrentHashMap<Integer, HighScoreTable>();
+	private static ConcurrentHashMap<Integer, RecentHighScores> mRecentHighScores = new ConcurrentHashMap<Integer, RecentHighScores>();
+	private static ConcurrentHashMap<Integer, PlayerTotals> mPlayerTotals = new ConcurrentHashMap<Integer, PlayerTotals>();
+	private static ConcurrentHashMap<Integer, GameCounters> mGameCounters = new ConcurrentHashMap<Integer, GameCounters>();
+	private static int mCountedGameHistoryId = 0;
+	private static Thread mCheckpointer = null;
+	private static CountDownLatch mCheckpointerStop = null;
+	private static volatile GameList mGameList = createGameList();
+	private static RatingTable mRatings = new RatingTable();
+
 	/**
 	 * Constructor.  Private to prevent creation.
 	 */
@@ -17,10 +66,409 @@ public class Database {
 	}
 
 	/**
-	 * Get a list of all games in the database.
+	 * Open the database, creating it if it does not exist.
+	 * @param directory The directory holding the database files.
+	 * @param segmentSize Size in bytes at which a log segment is sealed.
+	 * @throws IOException Thrown if the database cannot be opened.
+	 */
+	public static synchronized void open(File directory, int segmentSize) throws IOException {
+		close();
+
+		LogStore store = LogStore.open(directory, segmentSize);
+
+		mPlayerIds.clear();
+		mNextPlayerId.set(1);
+		mNextGameHistoryId.set(1);
+		mHighScores.clear();
+		mRecentHighScores.clear();
+		mPlayerTotals.clear();
+		mGameCounters.clear();
+		mCountedGameHistoryId = 0;
+		mRatings.clear();
+
+		for (GameData game : getGameList()) {
+			getHighScoreTable(game.getId());
+			getRecentHighScores(game.getId());
+		}
+
+		// Load the last checkpoint of the game counters, noting the last game
+		// each checkpoint includes
+		final HashMap<Integer, Integer> checkpointedIds = new HashMap<Integer, Integer>();
+
+		store.forEach(TYPE_GAME_STATS, (key, payload) -> {
+			long timesPlayed = payload.getLong();
+			long totalDuration = payload.getLong();
+
+			mGameCounters.put((int)key, new GameCounters((int)key, timesPlayed, totalDuration));
+			checkpointedIds.put((int)key, payload.getInt());
+		});
+
+		// Rebuild the username lookup and find the next free IDs
+		store.forEach(TYPE_PLAYER, (key, payload) -> {
+			PlayerData player = decodePlayer(payload);
+
+			mPlayerIds.put(player.getUsername(), player.getId());
+			raiseTo(mNextPlayerId, player.getId() + 1);
+		});
+
+		final HashMap<Integer, GameHistoryData> games = new HashMap<Integer, GameHistoryData>();
+
+		store.forEach(TYPE_GAME_HISTORY, (key, payload) -> {
+			games.put((int)key, decodeGameHistory((int)key, payload));
+			raiseTo(mNextGameHistoryId, (int)key + 1);
+		});
+
+		// Count every game saved since its counters were last checkpointed
+		for (GameHistoryData history : games.values()) {
+			Integer checkpointedId = checkpointedIds.get(history.getGameId());
+
+			if ((checkpointedId == null) || (history.getId() > checkpointedId)) {
+				getGameCounters(history.getGameId()).add(history.getDuration());
+			}
+
+			mCountedGameHistoryId = Math.max(mCountedGameHistoryId, history.getId());
+		}
+
+		for (GameData game : getGameList()) {
+			getGameCounters(game.getId());
+		}
+
+		// Replay every result into the in-memory tables
+		final LogStore replayStore = store;
+		final HashMap<Integer, GameResultList> results = new HashMap<Integer, GameResultList>();
+
+		store.forEach(TYPE_PARTICIPANT, (key, payload) -> {
+			int playerId = payload.getInt();
+			GameHistoryData history = games.get(payload.getInt());
+			int score = payload.getInt();
+			boolean disconnected = (payload.get() != 0);
+
+			if (history == null) return;
+
+			addResult(replayStore, history, playerId, score, disconnected);
+
+			GameResultList resultList = results.get(history.getId());
+
+			if (resultList == null) {
+				resultList = new GameResultList();
+				results.put(history.getId(), resultList);
+			}
+
+			resultList.add(new GameResultData(playerId, score, disconnected));
+		});
+
+		// Ratings depend on the order in which games were played
+		ArrayList<Integer> historyIds = new ArrayList<Integer>(results.keySet());
+		Collections.sort(historyIds);
+
+		for (Integer historyId : historyIds) {
+			addRatings(results.get(historyId));
+		}
+
+		for (HighScoreTable table : mHighScores.values()) {
+			table.publish();
+		}
+
+		for (RecentHighScores scores : mRecentHighScores.values()) {
+			scores.publish();
+		}
+
+		GameList gameList = getGameList();
+
+		for (PlayerTotals totals : mPlayerTotals.values()) {
+			totals.publish(gameList);
+		}
+
+		mStore = store;
+
+		startCheckpointer();
+	}
+
+	/**
+	 * Close the database.
+	 */
+	public static synchronized void close() {
+		if (mStore == null) return;
+
+		if (mCheckpointer != null) {
+
+			// Never interrupted, since interrupting a checkpoint whilst it
+			// writes would close the store's file
+			mCheckpointerStop.countDown();
+
+			try {
+				mCheckpointer.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+
+			mCheckpointer = null;
+			mCheckpointerStop = null;
+		}
+
+		checkpointGameCounters(mStore);
+
+		mStore.close();
+		mStore = null;
+	}
+
+	/**
+	 * Get the store, opening the database in the default directory if it has
+	 * not been opened yet.
+	 * @return The store.
+	 */
+	private static LogStore getStore() {
+		LogStore store = mStore;
+
+		if (store != null) return store;
+
+		synchronized (Database.class) {
+			if (mStore == null) {
+				try {
+					open(new File(DEFAULT_DIRECTORY), LogStore.DEFAULT_SEGMENT_SIZE);
+				} catch (IOException e) {
+					throw new RuntimeException("Could not open database: " + e);
+				}
+			}
+
+			return mStore;
+		}
+	}
+
+	/**
+	 * Get the username of a player.
+	 * @param store The store holding the player.
+	 * @param playerId The ID of the player.
+	 * @return The username, or null if there is no such player.
+	 */
+	private static String getUsername(LogStore store, int playerId) {
+		try {
+			ByteBuffer payload = store.get(TYPE_PLAYER, playerId);
+
+			return (payload == null ? null : decodePlayer(payload).getUsername());
+		} catch (IOException e) {
+			throw new RuntimeException("Could not read player " + playerId + ": " + e);
+		}
+	}
+
+	/**
+	 * Get the high score table of a game, creating it if necessary.
+	 * @param gameId The ID of the game.
+	 * @return The high score table.
+	 */
+	private static HighScoreTable getHighScoreTable(int gameId) {
+		HighScoreTable table = mHighScores.get(gameId);
+
+		if (table == null) {
+			mHighScores.putIfAbsent(gameId, new HighScoreTable(gameId, HighScoreTable.DEFAULT_SIZE));
+			table = mHighScores.get(gameId);
+		}
+
+		return table;
+	}
+
+	/**
+	 * Get the recent high scores of a game, creating them if necessary.
+	 * @param gameId The ID of the game.
+	 * @return The recent high scores.
+	 */
+	private static RecentHighScores getRecentHighScores(int gameId) {
+		RecentHighScores scores = mRecentHighScores.get(gameId);
+
+		if (scores == null) {
+			mRecentHighScores.putIfAbsent(gameId, new RecentHighScores(gameId, HighScoreTable.DEFAULT_SIZE));
+			scores = mRecentHighScores.get(gameId);
+		}
+
+		return scores;
+	}
+
+	/**
+	 * Get the counters of a game, creating them if necessary.
+	 * @param gameId The ID of the game.
+	 * @return The counters.
+	 */
+	private static GameCounters getGameCounters(int gameId) {
+		GameCounters counters = mGameCounters.get(gameId);
+
+		if (counters == null) {
+			mGameCounters.putIfAbsent(gameId, new GameCounters(gameId, 0, 0));
+			counters = mGameCounters.get(gameId);
+		}
+
+		return counters;
+	}
+
+	/**
+	 * Start the thread that checkpoints the game counters in the background.
+	 */
+	private static void startCheckpointer() {
+		final LogStore store = mStore;
+		final CountDownLatch stop = new CountDownLatch(1);
+
+		mCheckpointerStop = stop;
+		mCheckpointer = new Thread("Checkpointer") {
+			@Override
+			public void run() {
+				while (true) {
+					try {
+						if (stop.await(CHECKPOINT_INTERVAL, TimeUnit.MILLISECONDS)) return;
+					} catch (InterruptedException e) {
+						return;
+					}
+
+					checkpointGameCounters(store);
+				}
+			}
+		};
+
+		mCheckpointer.setDaemon(true);
+		mCheckpointer.start();
+	}
+
+	/**
+	 * Write the counters of every game counted since the last checkpoint to
+	 * the store.  Each checkpoint holds the ID of the last game history entry
+	 * it includes, so that games saved after it are counted again from the
+	 * history when the database is next opened.
+	 * @param store The store to write to.
+	 */
+	private static void checkpointGameCounters(LogStore store) {
+		ArrayList<LogStore.Record> records = new ArrayList<LogStore.Record>();
+		ArrayList<GameCounters> written = new ArrayList<GameCounters>();
+		ArrayList<Long> writtenTimesPlayed = new ArrayList<Long>();
+
+		// Read the counters together with the last game they include
+		synchronized (mGameCounters) {
+			for (GameCounters counters : mGameCounters.values()) {
+				long timesPlayed = counters.getTimesPlayed();
+
+				if (!counters.hasChangedSince(timesPlayed)) continue;
+
+				ByteBuffer payload = ByteBuffer.allocate(8 + 8 + 4);
+				payload.putLong(timesPlayed);
+				payload.putLong(counters.getTotalDuration());
+				payload.putInt(mCountedGameHistoryId);
+				payload.flip();
+
+				records.add(new LogStore.Record(TYPE_GAME_STATS, counters.getGameId(), payload));
+				written.add(counters);
+				writtenTimesPlayed.add(timesPlayed);
+			}
+		}
+
+		if (records.isEmpty()) return;
+
+		try {
+			store.append(records, true);
+		} catch (IOException e) {
+			System.out.println("Error checkpointing game stats: " + e);
+			return;
+		}
+
+		for (int i = 0; i < written.size(); ++i) {
+			written.get(i).setCheckpointed(writtenTimesPlayed.get(i));
+		}
+	}
+
+	/**
+	 * Add one player's result to the in-memory tables.  The high score tables
+	 * are not published, so that a game with several players produces a
+	 * single new list.
+	 * @param store The store holding the player.
+	 * @param history The game the result belongs to.
+	 * @param playerId The ID of the player.
+	 * @param score The player's score.
+	 * @param disconnected True if the player disconnected during the game.
+	 * @return True if a high score table changed.
+	 */
+	private static boolean addResult(LogStore store, GameHistoryData history, int playerId, int score,
+			boolean disconnected) {
+		PlayerTotals totals = mPlayerTotals.get(playerId);
+
+		if (totals == null) {
+			String username = getUsername(store, playerId);
+
+			// Players that never logged in have no entry
+			if (username == null) return false;
+
+			mPlayerTotals.putIfAbsent(playerId, new PlayerTotals(playerId, username));
+			totals = mPlayerTotals.get(playerId);
+		}
+
+		totals.add(history.getGameId(), history.getStartDate().getTime(), history.getDuration(),
+				history.getWinnerId() == playerId, disconnected);
+
+		if (disconnected) return false;
+
+		boolean changed = getHighScoreTable(history.getGameId()).add(score, totals.getUsername());
+
+		changed |= getRecentHighScores(history.getGameId()).add(score, totals.getUsername(),
+				history.getStartDate().getTime());
+
+		return changed;
+	}
+
+	/**
+	 * Adjust the ratings of the players in a game.
+	 * @param resultList The results of the game.
+	 */
+	private static void addRatings(GameResultList resultList) {
+		int[] playerIds = new int[resultList.size()];
+		int[] scores = new int[resultList.size()];
+		boolean[] disconnected = new boolean[resultList.size()];
+		int count = 0;
+
+		for (GameResultData result : resultList) {
+
+			// Players that never logged in are not rated
+			if (!mPlayerTotals.containsKey(result.getPlayerId())) continue;
+
+			playerIds[count] = result.getPlayerId();
+			scores[count] = result.getScore();
+			disconnected[count] = result.getDisconnected();
+			count++;
+		}
+
+		mRatings.addGame(playerIds, scores, disconnected, count);
+	}
+
+	/**
+	 * Raise a counter to at least a given value.
+	 * @param counter The counter.
+	 * @param value The lowest value the counter may have.
+	 */
+	private static void raiseTo(AtomicInteger counter, int value) {
+		int current;
+
+		do {
+			current = counter.get();
+		} while ((current < value) && !counter.compareAndSet(current, value));
+	}
+
+	/**
+	 * Get a list of all games in the database.  The list is shared with other
+	 * callers and is replaced rather than changed, so must not be modified.
 	 * @return A list of all games in the database.
 	 */
 	public static GameList getGameList() {
+		return mGameList;
+	}
+
+	/**
+	 * Get a game by its ID.
+	 * @param gameId The ID of the game.
+	 * @return The game, or null if there is no such game.
+	 */
+	public static GameData getGameData(int gameId) {
+		return mGameList.getGameDataByID(gameId);
+	}
+
+	/**
+	 * Create the list of all games.
+	 * @return The list of all games.
+	 */
+	private static GameList createGameList() {
 
 		GameList data = new GameList();
 
@@ -38,26 +486,33 @@ public class Database {
 	 * @return The player's data.
 	 */
 	public static PlayerData getPlayer(String username) {
-		return new PlayerData(1, username, username, new Date(System.currentTimeMillis()));
-	}
+		LogStore store = getStore();
+		Integer id = mPlayerIds.get(username);
 
-	/**
-	 * Create a new entry in the game history table.  Returns a GameHistoryData
-	 * object representing the new row.
-	 * @return A GameHistoryData object representing the new row.
-	 */
-	private static GameHistoryData createGameHistory(int gameId, int winnerId, java.sql.Date startDate, long duration) {
-		return new GameHistoryData(1, gameId, winnerId, startDate, duration);
+		if (id == null) return null;
+
+		try {
+			ByteBuffer payload = store.get(TYPE_PLAYER, id);
+
+			return (payload == null ? null : decodePlayer(payload));
+		} catch (IOException e) {
+			throw new RuntimeException("Could not read player " + username + ": " + e);
+		}
 	}
 
 	/**
-	 * Create a new entry in the game participants table.
-	 * @param playerId ID of the player.
-	 * @param gameHistoryId ID of the related game history entry.
-	 * @param score The player's score.
-	 * @param disconnected True if the player disconnected during the game.
+	 * Get an entry from the game history table.
+	 * @param gameHistoryId ID of the game history entry.
+	 * @return The game history entry, or null if there is no such entry.
 	 */
-	public static void createParticipant(int playerId, int gameHistoryId, int score, boolean disconnected) {
+	public static GameHistoryData getGameHistory(int gameHistoryId) {
+		try {
+			ByteBuffer payload = getStore().get(TYPE_GAME_HISTORY, gameHistoryId);
+
+			return (payload == null ? null : decodeGameHistory(gameHistoryId, payload));
+		} catch (IOException e) {
+			throw new RuntimeException("Could not read game history " + gameHistoryId + ": " + e);
+		}
 	}
 
 	/**
@@ -94,7 +549,22 @@ public class Database {
 	 * @return The player's data.
 	 */
 	public static PlayerData register(String username, String password) {
-		return new PlayerData(3, username, password, new Date(System.currentTimeMillis()));
+		LogStore store = getStore();
+		int id = mNextPlayerId.getAndIncrement();
+
+		// Username already taken
+		if (mPlayerIds.putIfAbsent(username, id) != null) return null;
+
+		PlayerData player = new PlayerData(id, username, password, new Date(System.currentTimeMillis()));
+
+		try {
+			store.append(encodePlayer(player), true);
+		} catch (IOException e) {
+			mPlayerIds.remove(username, id);
+			throw new RuntimeException("Could not register player " + username + ": " + e);
+		}
+
+		return player;
 	}
 	
 	/**
@@ -103,7 +573,7 @@ public class Database {
 	 * @return The player's stats.
 	 */
 	public static String getPlayerFavouriteGame(int playerId) {
-		return "Pac Man";
+		return getPlayerStats(playerId).getFavouriteGame();
 	}
 	
 	/**
@@ -112,7 +582,7 @@ public class Database {
 	 * @return The date of the last game played.
 	 */
 	public static String getPlayerLastGamePlayedDate(int playerId) {
-		return "2008-01-01";
+		return getPlayerStats(playerId).getLastGamePlayedDate();
 	}
 	
 	/**
@@ -121,7 +591,7 @@ public class Database {
 	 * @return The name of the last game played.
 	 */
 	public static String getPlayerLastGamePlayedName(int playerId) {
-		return "Pac Man";
+		return getPlayerStats(playerId).getLastGamePlayed();
 	}
 
 	
@@ -131,7 +601,7 @@ public class Database {
 	 * @return The number of times the player has disconnected.
 	 */
 	public static int getPlayerDisconnects(int playerId) {
-		return 0;
+		return getPlayerStats(playerId).getNumberOfDisconnects();
 	}
 	
 	/**
@@ -140,7 +610,7 @@ public class Database {
 	 * @return The number of times the player has won.
 	 */
 	public static int getPlayerGamesWon(int playerId) {
-		return 0;
+		return getPlayerStats(playerId).getNumberOfGamesWon();
 	}
 	
 	/**
@@ -149,7 +619,7 @@ public class Database {
 	 * @return The number of times the player has played a game.
 	 */
 	public static int getPlayerGamesPlayed(int playerId) {
-		return 0;
+		return getPlayerStats(playerId).getNumberOfGamesPlayed();
 	}
 
 	/**
@@ -158,7 +628,7 @@ public class Database {
 	 * @return The time a player has spent playing.
 	 */
 	public static long getPlayerGameDuration(int playerId) {
-		return 0;
+		return Long.parseLong(getPlayerStats(playerId).getTotalTimePlayed());
 	}
 	
 	/**
@@ -167,72 +637,298 @@ public class Database {
 	 * @return The number of times a game has been played.
 	 */
 	public static int getGamesPlayed(int gameId) {
-		return 0;
+		getStore();
+
+		GameCounters counters = mGameCounters.get(gameId);
+
+		return (counters == null ? 0 : (int)counters.getTimesPlayed());
 	}
 	
 	/**
-	 * Get the stats for the specified game ID.
+	 * Get the stats for the specified game ID.  The stats are counted in
+	 * memory as games are saved, so no history is read.
 	 * @param gameId The ID of the game to retrieve stats for.
 	 * @return The stats for the specified game.
 	 */
 	public static GameStats getGameStats(int gameId) {
-		long totalDuration = getGameDuration(gameId);
-		int timesPlayed = getGamesPlayed(gameId);
-		
-		return new GameStats(gameId, totalDuration, timesPlayed);
-	}	
-	
+		getStore();
+
+		GameCounters counters = mGameCounters.get(gameId);
+
+		return (counters == null ? new GameStats(gameId, 0, 0) : counters.getStats());
+	}
+
 	/**
 	 * Get the total time that a game has been played.
 	 * @param gameId The ID of the game.
 	 * @return The amount of time a game has been played.
 	 */
 	public static long getGameDuration(int gameId) {
-		return 0;
+		getStore();
+
+		GameCounters counters = mGameCounters.get(gameId);
+
+		return (counters == null ? 0 : counters.getTotalDuration());
 	}
 	
 	/**
-	 * Get a player's stats by username.
+	 * Get a player's stats by username.  The stats are kept up to date in
+	 * memory as games are saved, so no history is read.
 	 * @param username The username of the player to retrieve.
-	 * @return The player's stats.
+	 * @return The player's stats, or null if there is no such player.
 	 */
 	public static PlayerStats getPlayerStats(String username) {
+		if (username == null) return null;
+
+		getStore();
+
+		Integer id = mPlayerIds.get(username);
 
-		return new PlayerStats(username, "Pac Man", "Pac Man", "10 August 2008",
-						12, 2, 3, "16000", "Beginner");
+		return (id == null ? null : getPlayerStats(id));
 	}
-        
+
 	/**
-	 * Save the outcome of a game to the database.
+	 * Get a player's rating and position among all rated players.  Ratings
+	 * are kept in memory and updated as games are saved.
+	 * @param username The username of the player.
+	 * @return The player's rank, or null if there is no such player.
+	 */
+	public static PlayerRank getPlayerRank(String username) {
+		if (username == null) return null;
+
+		getStore();
+
+		Integer id = mPlayerIds.get(username);
+
+		return (id == null ? null : mRatings.getPlayerRank(id));
+	}
+
+	/**
+	 * Get a player's stats by ID.
+	 * @param playerId The ID of the player.
+	 * @return The player's stats.
+	 */
+	private static PlayerStats getPlayerStats(int playerId) {
+		getStore();
+
+		PlayerTotals totals = mPlayerTotals.get(playerId);
+		PlayerStats stats = (totals == null ? null : totals.getSnapshot());
+
+		if (stats != null) return stats;
+
+		String username = getUsername(getStore(), playerId);
+
+		return PlayerTotals.getEmptyStats(username == null ? "" : username);
+	}
+
+	/**
+	 * Update the in-memory tables with the outcome of a game.  Called only by
+	 * the result writer, once the game has been written, so that games are
+	 * applied one at a time in the order of their IDs.
+	 * @param history The game.
+	 * @param resultList The validated results of the game.
+	 */
+	static void applyGameResults(GameHistoryData history, GameResultList resultList) {
+		LogStore store = getStore();
+		boolean changed = false;
+
+		// The count is checkpointed to the store periodically rather than
+		// written with the game
+		synchronized (mGameCounters) {
+			getGameCounters(history.getGameId()).add(history.getDuration());
+			mCountedGameHistoryId = Math.max(mCountedGameHistoryId, history.getId());
+		}
+
+		for (GameResultData result : resultList) {
+			changed |= addResult(store, history, result.getPlayerId(), result.getScore(), result.getDisconnected());
+		}
+
+		if (changed) {
+			getHighScoreTable(history.getGameId()).publish();
+			getRecentHighScores(history.getGameId()).publish();
+		}
+
+		addRatings(resultList);
+
+		GameList gameList = getGameList();
+
+		for (GameResultData result : resultList) {
+			PlayerTotals totals = mPlayerTotals.get(result.getPlayerId());
+
+			if (totals != null) totals.publish(gameList);
+		}
+	}
+
+	/**
+	 * Create the records that save the outcome of a game.  The records can be
+	 * written along with those of other games.
+	 * @param records The list to add the records to.
 	 * @param gameId The ID of the game.
 	 * @param winnerId The ID of the game winner (player ID).
 	 * @param startDate The date on which the game started.
 	 * @param duration The duration of the game.
 	 * @param resultList The results to save.
+	 * @return The game history entry that the records create.
 	 */
-	public static void saveGameResults(int gameId, int winnerId, long startDate, long duration, GameResultList resultList) {
+	static GameHistoryData addGameResults(List<LogStore.Record> records, int gameId, int winnerId, long startDate,
+			long duration, GameResultList resultList) {
+		GameHistoryData history = new GameHistoryData(mNextGameHistoryId.getAndIncrement(), gameId, winnerId,
+				new Date(startDate), duration);
+
+		records.add(encodeGameHistory(history));
+
+		for (GameResultData result : resultList) {
+			records.add(encodeParticipant(result.getPlayerId(), history.getId(), result.getScore(),
+					result.getDisconnected()));
+		}
+
+		return history;
 	}
 
 	/**
-	 * Get a list of HighScores by game ID.
+	 * Write records to the store as one batch and wait until they are on
+	 * disk.
+	 * @param records The records to write.
+	 */
+	static void write(List<LogStore.Record> records) {
+		try {
+			getStore().append(records, true);
+		} catch (IOException e) {
+			throw new RuntimeException("Could not write to database: " + e);
+		}
+	}
+
+	/**
+	 * Create the store record for a player.
+	 * @param player The player.
+	 * @return The record.
+	 */
+	private static LogStore.Record encodePlayer(PlayerData player) {
+		byte[] username = player.getUsername().getBytes(CHARSET);
+		byte[] password = player.getPassword().getBytes(CHARSET);
+
+		ByteBuffer payload = ByteBuffer.allocate(4 + 2 + username.length + 2 + password.length + 8);
+		payload.putInt(player.getId());
+		payload.putShort((short)username.length);
+		payload.put(username);
+		payload.putShort((short)password.length);
+		payload.put(password);
+		payload.putLong(player.getJoinedDate().getTime());
+		payload.flip();
+
+		return new LogStore.Record(TYPE_PLAYER, player.getId(), payload);
+	}
+
+	/**
+	 * Read a player from a store record.
+	 * @param payload The payload of the record.
+	 * @return The player.
+	 */
+	private static PlayerData decodePlayer(ByteBuffer payload) {
+		int id = payload.getInt();
+		String username = getString(payload);
+		String password = getString(payload);
+		long joinedDate = payload.getLong();
+
+		return new PlayerData(id, username, password, new Date(joinedDate));
+	}
+
+	/**
+	 * Create the store record for a game history entry.
+	 * @param history The game history entry.
+	 * @return The record.
+	 */
+	private static LogStore.Record encodeGameHistory(GameHistoryData history) {
+		ByteBuffer payload = ByteBuffer.allocate(4 + 4 + 8 + 8);
+		payload.putInt(history.getGameId());
+		payload.putInt(history.getWinnerId());
+		payload.putLong(history.getStartDate().getTime());
+		payload.putLong(history.getDuration());
+		payload.flip();
+
+		return new LogStore.Record(TYPE_GAME_HISTORY, history.getId(), payload);
+	}
+
+	/**
+	 * Read a game history entry from a store record.
+	 * @param id ID of the game history entry.
+	 * @param payload The payload of the record.
+	 * @return The game history entry.
+	 */
+	private static GameHistoryData decodeGameHistory(int id, ByteBuffer payload) {
+		int gameId = payload.getInt();
+		int winnerId = payload.getInt();
+		long startDate = payload.getLong();
+		long duration = payload.getLong();
+
+		return new GameHistoryData(id, gameId, winnerId, new Date(startDate), duration);
+	}
+
+	/**
+	 * Create the store record for a game participant.  Participants are keyed
+	 * by game history ID and player ID together.
+	 * @param playerId ID of the player.
+	 * @param gameHistoryId ID of the related game history entry.
+	 * @param score The player's score.
+	 * @param disconnected True if the player disconnected during the game.
+	 * @return The record.
+	 */
+	private static LogStore.Record encodeParticipant(int playerId, int gameHistoryId, int score, boolean disconnected) {
+		ByteBuffer payload = ByteBuffer.allocate(4 + 4 + 4 + 1);
+		payload.putInt(playerId);
+		payload.putInt(gameHistoryId);
+		payload.putInt(score);
+		payload.put((byte)(disconnected ? 1 : 0));
+		payload.flip();
+
+		long key = ((long)gameHistoryId << 32) | (playerId & 0xffffffffL);
+
+		return new LogStore.Record(TYPE_PARTICIPANT, key, payload);
+	}
+
+	/**
+	 * Read a length-prefixed string from a store record.
+	 * @param payload The payload of the record.
+	 * @return The string.
+	 */
+	private static String getString(ByteBuffer payload) {
+		byte[] bytes = new byte[payload.getShort() & 0xffff];
+		payload.get(bytes);
+
+		return new String(bytes, CHARSET);
+	}
+
+	/**
+	 * Get a list of HighScores by game ID.  The list is served from memory and
+	 * is shared with other callers, so must not be modified.
 	 * @param gameId The ID number of a game.
 	 * @return A HighScoreData object containing the highscores for that game.
 	 */
-    public static HighScoreData getHighScores(int gameId) {
+	public static HighScoreData getHighScores(int gameId) {
+		getStore();
 
-		HighScoreData scores = new HighScoreData(gameId);
-		scores.add(new HighScore(750, "Bob"));
-		scores.add(new HighScore(740, "Tom"));
-		scores.add(new HighScore(700, "Bill"));
-		scores.add(new HighScore(650, "Dave"));
-		scores.add(new HighScore(625, "Harry"));
-		scores.add(new HighScore(600, "Larry"));
-		scores.add(new HighScore(575, "Barry"));
-		scores.add(new HighScore(550, "Gary"));
-		scores.add(new HighScore(500, "Terry"));
-		scores.add(new HighScore(450, "Jerry"));
+		HighScoreTable table = mHighScores.get(gameId);
 
-		return scores;
-    }
+		return (table == null ? new HighScoreData(gameId) : table.getSnapshot());
+	}
+
+	/**
+	 * Get a list of HighScores by game ID for a window of time.  The list is
+	 * served from memory and is shared with other callers, so must not be
+	 * modified.
+	 * @param gameId The ID number of a game.
+	 * @param window One of the HighScoreData window constants.
+	 * @return A HighScoreData object containing the highscores for that game.
+	 */
+	public static HighScoreData getHighScores(int gameId, int window) {
+		if ((window != HighScoreData.WINDOW_DAILY) && (window != HighScoreData.WINDOW_WEEKLY)) {
+			return getHighScores(gameId);
+		}
+
+		getStore();
+
+		RecentHighScores scores = mRecentHighScores.get(gameId);
+
+		return (scores == null ? new HighScoreData(gameId) : scores.getSnapshot(window));
+	}
 }
-            
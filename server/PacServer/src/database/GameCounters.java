@@ -0,0 +1,90 @@
+package database;
+
+import java.util.concurrent.atomic.*;
+
+/**
+ * Running totals of how often and for how long one game has been played.
+ * A game is added to the totals once it has been saved.  The counters are
+ * striped, so lobby threads reading the totals never contend with the thread
+ * adding to them.  Reading the totals sums the stripes.
+ *
+ * The totals are checkpointed to the database periodically rather than on
+ * every game.
+ */
+public class GameCounters {
+
+	// Members
+	private int mGameId;
+	private LongAdder mTimesPlayed;
+	private LongAdder mTotalDuration;
+	private long mCheckpointedTimesPlayed;
+
+	/**
+	 * Constructor.
+	 * @param gameId The ID of the game.
+	 * @param timesPlayed The number of times the game has been played.
+	 * @param totalDuration The total time the game has been played.
+	 */
+	public GameCounters(int gameId, long timesPlayed, long totalDuration) {
+		mGameId = gameId;
+		mTimesPlayed = new LongAdder();
+		mTotalDuration = new LongAdder();
+		mTimesPlayed.add(timesPlayed);
+		mTotalDuration.add(totalDuration);
+		mCheckpointedTimesPlayed = timesPlayed;
+	}
+
+	/**
+	 * Get the ID of the game.
+	 * @return The ID of the game.
+	 */
+	public int getGameId() { return mGameId; }
+
+	/**
+	 * Count a finished game.
+	 * @param duration The duration of the game.
+	 */
+	public void add(long duration) {
+		mTimesPlayed.increment();
+		mTotalDuration.add(duration);
+	}
+
+	/**
+	 * Get the number of times the game has been played.
+	 * @return The number of times played.
+	 */
+	public long getTimesPlayed() { return mTimesPlayed.sum(); }
+
+	/**
+	 * Get the total time the game has been played.
+	 * @return The total duration.
+	 */
+	public long getTotalDuration() { return mTotalDuration.sum(); }
+
+	/**
+	 * Get the totals as a GameStats object.
+	 * @return The game stats.
+	 */
+	public GameStats getStats() {
+		return new GameStats(mGameId, getTotalDuration(), (int)getTimesPlayed());
+	}
+
+	/**
+	 * Check whether a game has been counted since the last checkpoint.  Only
+	 * called by the checkpointing thread.
+	 * @param timesPlayed The number of times played now.
+	 * @return True if the totals should be checkpointed.
+	 */
+	boolean hasChangedSince(long timesPlayed) {
+		return timesPlayed != mCheckpointedTimesPlayed;
+	}
+
+	/**
+	 * Record that the totals have been checkpointed.  Only called by the
+	 * checkpointing thread.
+	 * @param timesPlayed The number of times played that was checkpointed.
+	 */
+	void setCheckpointed(long timesPlayed) {
+		mCheckpointedTimesPlayed = timesPlayed;
+	}
+}
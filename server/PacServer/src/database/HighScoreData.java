@@ -9,6 +9,20 @@ import java.util.*;
  */
 public class HighScoreData extends ArrayList<HighScore> {
 
+	// Constants
+
+	/** Best scores ever achieved */
+	public static final int WINDOW_ALL_TIME = 0;
+
+	/** Best scores achieved today */
+	public static final int WINDOW_DAILY = 1;
+
+	/** Best scores achieved in the last seven days */
+	public static final int WINDOW_WEEKLY = 2;
+
+	/** Number of windows */
+	public static final int WINDOW_COUNT = 3;
+
 	// Members
 	private int gameId;
 
@@ -35,10 +49,13 @@ public class HighScoreData extends ArrayList<HighScore> {
 	 */
 	@Override
 	public String toString() {
-		String scoreString = new String("");
+		StringBuilder builder = new StringBuilder();
 		for (int i = 0; i < size(); i++) {
-			scoreString += get(i).toString() + ",";
+			builder.append(get(i).getScore());
+			builder.append(",");
+			builder.append(get(i).getUsername());
+			builder.append(",");
 		}
-		return scoreString;
+		return builder.toString();
 	}
 }
@@ -0,0 +1,80 @@
+package database;
+
+import java.util.*;
+
+/**
+ * The best scores ever achieved in one game, kept in memory and updated as
+ * each game finishes.  Scores are held in a min-heap bounded to the size of
+ * the table, so a new score is compared only with the lowest score in the
+ * table and the table never grows.
+ *
+ * Readers are given an immutable snapshot of the table, sorted from best to
+ * worst.  A new snapshot replaces the old one whenever the table changes, so
+ * reading the table never needs to lock it or sort it.
+ */
+public class HighScoreTable {
+
+	// Constants
+
+	/** Default number of scores kept in the table */
+	public static final int DEFAULT_SIZE = 10;
+
+	// Members
+	private int mGameId;
+	private int mSize;
+	private PriorityQueue<HighScore> mHeap;
+	private volatile HighScoreData mSnapshot;
+
+	/**
+	 * Constructor.
+	 * @param gameId The ID of the game.
+	 * @param size The number of scores to keep.
+	 */
+	public HighScoreTable(int gameId, int size) {
+		mGameId = gameId;
+		mSize = Math.max(1, size);
+		mHeap = new PriorityQueue<HighScore>(mSize, (a, b) -> Integer.compare(a.getScore(), b.getScore()));
+		mSnapshot = new HighScoreData(gameId);
+	}
+
+	/**
+	 * Offer a score to the table.  The score is kept if the table is not yet
+	 * full or the score beats the lowest score in the table.
+	 * @param score The score achieved.
+	 * @param username The player that achieved the score.
+	 * @return True if the table changed.
+	 */
+	public synchronized boolean add(int score, String username) {
+		if (mHeap.size() >= mSize) {
+			if (score <= mHeap.peek().getScore()) return false;
+
+			mHeap.poll();
+		}
+
+		mHeap.add(new HighScore(score, username));
+
+		return true;
+	}
+
+	/**
+	 * Publish the current contents of the table to readers.  Called once
+	 * after a batch of scores has been added, so that a game with several
+	 * players produces a single new snapshot.
+	 */
+	public synchronized void publish() {
+		HighScoreData scores = new HighScoreData(mGameId);
+
+		scores.addAll(mHeap);
+		Collections.sort(scores, (a, b) -> Integer.compare(b.getScore(), a.getScore()));
+		scores.trimToSize();
+
+		mSnapshot = scores;
+	}
+
+	/**
+	 * Get the current scores, best first.  The returned object must not be
+	 * modified; it is shared by every reader until the table next changes.
+	 * @return The current scores.
+	 */
+	public HighScoreData getSnapshot() { return mSnapshot; }
+}
@@ -0,0 +1,392 @@
+package database;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.concurrent.atomic.*;
+import java.util.zip.*;
+
+/**
+ * A single file of the record log.  Records are only ever appended to the
+ * active segment, the segment with the highest ID.  Once a segment is full it
+ * is flushed to disk, sealed and memory-mapped; a sealed segment is never
+ * written to again, so it can be read by any number of threads without
+ * locking.
+ *
+ * Each record is laid out as:
+ *
+ * checksum (4 bytes), payload length (4 bytes), type (1 byte), key (8 bytes),
+ * payload
+ *
+ * The checksum is a CRC32 of everything that follows it.  Records are
+ * written in batches, and the top bit of the type is set on the last record
+ * of each batch.  A batch that was only partly written when the server
+ * stopped, because a record fails its checksum or the batch has no last
+ * record, is discarded as a whole when the log is reopened.
+ */
+public class LogSegment {
+
+	// Constants
+
+	/** Identifies a segment file, stored in the first four bytes */
+	private static final int MAGIC = 0x5041434c;
+
+	/** Version of the segment format, stored after the magic number */
+	private static final int VERSION = 1;
+
+	/** Size of the segment file header in bytes */
+	public static final int FILE_HEADER_SIZE = 8;
+
+	/** Size of a record header in bytes */
+	public static final int RECORD_HEADER_SIZE = 17;
+
+	/** Flag set in the type of the last record of a batch */
+	private static final int BATCH_END = 0x80;
+
+	/** Suffix of segment file names */
+	public static final String SUFFIX = ".log";
+
+	/**
+	 * Receives the records read from a segment.
+	 */
+	public interface RecordVisitor {
+
+		/**
+		 * Called for each record in the segment, in the order they were
+		 * written.
+		 * @param type The type of the record.
+		 * @param key The key of the record.
+		 * @param offset Offset of the record within the segment.
+		 * @param length Length of the record including its header.
+		 */
+		void visit(byte type, long key, int offset, int length);
+	}
+
+	// Members
+	private int mId;
+	private File mFile;
+	private FileChannel mChannel;
+	private volatile MappedByteBuffer mMap;
+	private volatile int mSize;
+	private AtomicLong mLiveBytes;
+
+	/**
+	 * Constructor.
+	 * @param id The ID of the segment.
+	 * @param file The segment file.
+	 * @param channel Channel open on the segment file.
+	 * @param size Number of bytes of valid data in the file.
+	 */
+	private LogSegment(int id, File file, FileChannel channel, int size) {
+		mId = id;
+		mFile = file;
+		mChannel = channel;
+		mMap = null;
+		mSize = size;
+		mLiveBytes = new AtomicLong(0);
+	}
+
+	/**
+	 * Create a new, empty segment.
+	 * @param directory The directory to create the segment in.
+	 * @param id The ID of the segment.
+	 * @return The new segment.
+	 * @throws IOException Thrown if the file cannot be created.
+	 */
+	public static LogSegment create(File directory, int id) throws IOException {
+		File file = new File(directory, getFileName(id));
+		FileChannel channel = new RandomAccessFile(file, "rw").getChannel();
+
+		ByteBuffer header = ByteBuffer.allocate(FILE_HEADER_SIZE);
+		header.putInt(MAGIC);
+		header.putInt(VERSION);
+		header.flip();
+
+		channel.truncate(0);
+		channel.write(header, 0);
+		channel.force(true);
+
+		return new LogSegment(id, file, channel, FILE_HEADER_SIZE);
+	}
+
+	/**
+	 * Open an existing segment.
+	 * @param file The segment file.
+	 * @param id The ID of the segment.
+	 * @return The segment.
+	 * @throws IOException Thrown if the file cannot be opened or is not a
+	 * segment file.
+	 */
+	public static LogSegment open(File file, int id) throws IOException {
+		FileChannel channel = new RandomAccessFile(file, "rw").getChannel();
+
+		ByteBuffer header = ByteBuffer.allocate(FILE_HEADER_SIZE);
+
+		if ((channel.read(header, 0) < FILE_HEADER_SIZE) || (header.getInt(0) != MAGIC) ||
+				(header.getInt(4) != VERSION)) {
+			channel.close();
+			throw new IOException("Not a segment file: " + file);
+		}
+
+		return new LogSegment(id, file, channel, (int)Math.min(channel.size(), Integer.MAX_VALUE));
+	}
+
+	/**
+	 * Get the file name of a segment.
+	 * @param id The ID of the segment.
+	 * @return The file name.
+	 */
+	public static String getFileName(int id) {
+		return String.format("%08d", id) + SUFFIX;
+	}
+
+	/**
+	 * Get the ID of the segment.
+	 * @return The ID of the segment.
+	 */
+	public int getId() { return mId; }
+
+	/**
+	 * Get the number of bytes written to the segment.
+	 * @return The size of the segment.
+	 */
+	public int getSize() { return mSize; }
+
+	/**
+	 * Get the number of bytes in records that are still current.
+	 * @return The number of live bytes.
+	 */
+	public long getLiveBytes() { return mLiveBytes.get(); }
+
+	/**
+	 * Adjust the number of bytes in records that are still current.
+	 * @param delta The number of bytes to add.
+	 */
+	public void addLiveBytes(long delta) { mLiveBytes.addAndGet(delta); }
+
+	/**
+	 * Check if the segment has been sealed.
+	 * @return True if the segment is sealed.
+	 */
+	public boolean isSealed() { return mMap != null; }
+
+	/**
+	 * Append encoded records to the end of the segment.  Must only be called
+	 * by one thread at a time, and never once the segment is sealed.
+	 * @param records The records to write.
+	 * @return Offset of the first record within the segment.
+	 * @throws IOException Thrown if the records cannot be written.
+	 */
+	public int append(ByteBuffer records) throws IOException {
+		int offset = mSize;
+		long position = offset;
+
+		while (records.hasRemaining()) {
+			position += mChannel.write(records, position);
+		}
+
+		mSize = (int)position;
+
+		return offset;
+	}
+
+	/**
+	 * Flush everything written to the segment to disk.
+	 * @throws IOException Thrown if the segment cannot be flushed.
+	 */
+	public void force() throws IOException {
+		mChannel.force(false);
+	}
+
+	/**
+	 * Flush the segment to disk and map it into memory.  The segment must not
+	 * be written to afterwards.
+	 * @throws IOException Thrown if the segment cannot be mapped.
+	 */
+	public void seal() throws IOException {
+		mChannel.force(true);
+		mMap = mChannel.map(FileChannel.MapMode.READ_ONLY, 0, mSize);
+	}
+
+	/**
+	 * Read a record, checking its checksum.
+	 * @param offset Offset of the record within the segment.
+	 * @param length Length of the record including its header.
+	 * @return A buffer holding the whole record, or null if the record is
+	 * damaged.
+	 * @throws IOException Thrown if the record cannot be read.
+	 */
+	public ByteBuffer read(int offset, int length) throws IOException {
+		ByteBuffer record;
+		MappedByteBuffer map = mMap;
+
+		if (map != null) {
+			record = map.duplicate();
+			record.position(offset);
+			record.limit(offset + length);
+			record = record.slice();
+		} else {
+			record = ByteBuffer.allocate(length);
+
+			while (record.hasRemaining()) {
+				if (mChannel.read(record, offset + record.position()) < 0) return null;
+			}
+
+			record.flip();
+		}
+
+		return (isValid(record, 0, length) ? record : null);
+	}
+
+	/**
+	 * Read every record in the segment.  Stops at the first record that is
+	 * incomplete or, if checked, fails its checksum; records are only passed
+	 * to the visitor once the whole of their batch has been read.
+	 * @param visitor Receives each record.
+	 * @param verify True to check the checksum of each record.
+	 * @return Offset of the end of the last complete batch.
+	 * @throws IOException Thrown if the segment cannot be read.
+	 */
+	public int scan(RecordVisitor visitor, boolean verify) throws IOException {
+		MappedByteBuffer map = mChannel.map(FileChannel.MapMode.READ_ONLY, 0, mSize);
+		int batchStart = FILE_HEADER_SIZE;
+		int offset = batchStart;
+
+		while (offset + RECORD_HEADER_SIZE <= mSize) {
+			int payloadLength = map.getInt(offset + 4);
+			int length = RECORD_HEADER_SIZE + payloadLength;
+
+			if ((payloadLength < 0) || (length > mSize - offset)) break;
+
+			if (verify && !isValid(map, offset, length)) break;
+
+			offset += length;
+
+			if ((map.get(offset - length + 8) & BATCH_END) == 0) continue;
+
+			// Batch complete, so hand over its records
+			while (batchStart < offset) {
+				length = RECORD_HEADER_SIZE + map.getInt(batchStart + 4);
+
+				visitor.visit((byte)(map.get(batchStart + 8) & ~BATCH_END), map.getLong(batchStart + 9),
+						batchStart, length);
+
+				batchStart += length;
+			}
+		}
+
+		return batchStart;
+	}
+
+	/**
+	 * Discard everything after the given offset.  Used to remove a partly
+	 * written record after a crash.
+	 * @param size The new size of the segment.
+	 * @throws IOException Thrown if the segment cannot be truncated.
+	 */
+	public void truncate(int size) throws IOException {
+		mChannel.truncate(size);
+		mChannel.force(true);
+		mSize = size;
+	}
+
+	/**
+	 * Copy a record from this segment into a buffer.  The copy forms a batch
+	 * of its own.
+	 * @param offset Offset of the record within the segment.
+	 * @param length Length of the record including its header.
+	 * @param target The buffer to copy into.
+	 * @return False if the record is damaged.
+	 * @throws IOException Thrown if the record cannot be read.
+	 */
+	public boolean copyTo(int offset, int length, ByteBuffer target) throws IOException {
+		ByteBuffer record = read(offset, length);
+
+		if (record == null) return false;
+
+		encode(target, (byte)(record.get(8) & ~BATCH_END), record.getLong(9), getPayload(record), true);
+
+		return true;
+	}
+
+	/**
+	 * Close the segment's file.
+	 */
+	public void close() {
+		try {
+			mChannel.close();
+		} catch (IOException e) {
+			// Ignore
+		}
+	}
+
+	/**
+	 * Close and delete the segment's file.  Readers that already hold a
+	 * mapping of the segment can still finish reading it.
+	 */
+	public void delete() {
+		close();
+
+		if (!mFile.delete()) {
+			System.out.println("Could not delete segment " + mFile);
+		}
+	}
+
+	/**
+	 * Write a record into a buffer.
+	 * @param target The buffer to write into.
+	 * @param type The type of the record.
+	 * @param key The key of the record.
+	 * @param payload The payload of the record.
+	 * @param last True if the record is the last of its batch.
+	 */
+	public static void encode(ByteBuffer target, byte type, long key, ByteBuffer payload, boolean last) {
+		int start = target.position();
+
+		target.putInt(0);
+		target.putInt(payload.remaining());
+		target.put((byte)(last ? (type | BATCH_END) : type));
+		target.putLong(key);
+		target.put(payload);
+
+		CRC32 crc = new CRC32();
+		ByteBuffer body = target.duplicate();
+		body.limit(target.position());
+		body.position(start + 4);
+		crc.update(body);
+
+		target.putInt(start, (int)crc.getValue());
+	}
+
+	/**
+	 * Get the payload of a record.
+	 * @param record A buffer holding the whole record.
+	 * @return A buffer holding just the payload.
+	 */
+	public static ByteBuffer getPayload(ByteBuffer record) {
+		ByteBuffer payload = record.duplicate();
+		payload.position(record.position() + RECORD_HEADER_SIZE);
+
+		return payload.slice();
+	}
+
+	/**
+	 * Check the checksum of a record.
+	 * @param buffer Buffer holding the record.
+	 * @param offset Offset of the record within the buffer.
+	 * @param length Length of the record including its header.
+	 * @return True if the checksum matches.
+	 */
+	private static boolean isValid(ByteBuffer buffer, int offset, int length) {
+		if (length < RECORD_HEADER_SIZE) return false;
+
+		ByteBuffer body = buffer.duplicate();
+		body.limit(offset + length);
+		body.position(offset + 4);
+
+		CRC32 crc = new CRC32();
+		crc.update(body);
+
+		return buffer.getInt(offset) == (int)crc.getValue();
+	}
+}
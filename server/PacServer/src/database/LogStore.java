@@ -0,0 +1,529 @@
+package database;
+
+import java.io.*;
+import java.nio.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Embedded, log-structured record store.  Every record has a type and a key,
+ * and writing a record with the same type and key as an earlier one replaces
+ * it.  Records are appended to a log made up of segment files, and an
+ * in-memory hash index maps each key to the latest copy of its record.  The
+ * index is rebuilt from the log when the store is opened.
+ *
+ * Only the newest segment is ever written to.  Older segments are sealed and
+ * memory-mapped, so reads from them need no locking or system calls.  A
+ * background thread compacts sealed segments whose records have mostly been
+ * replaced, copying the few current records to the head of the log and
+ * deleting the old file.
+ *
+ * Each call to append() is written as a single batch, and a batch that was
+ * not completely written when the server stopped is discarded as a whole.
+ * Sealed segments were flushed to disk before the next segment was started,
+ * so when the store is reopened only the newest segment has its checksums
+ * checked.
+ */
+public class LogStore {
+
+	// Constants
+
+	/** Default size in bytes at which a segment is sealed and a new one started */
+	public static final int DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+
+	/** Number of record types the store can hold */
+	public static final int MAX_TYPES = 16;
+
+	/** Time in milliseconds between compaction checks */
+	public static final long COMPACT_INTERVAL = 60000;
+
+	/** Sealed segments with less than this fraction of live data are compacted */
+	private static final double COMPACT_THRESHOLD = 0.5;
+
+	/** Maximum number of bytes copied per lock hold when compacting */
+	private static final int COMPACT_BATCH_SIZE = 1024 * 1024;
+
+	/** Initial size of the write buffer */
+	private static final int WRITE_BUFFER_SIZE = 64 * 1024;
+
+	/**
+	 * A record waiting to be written.
+	 */
+	public static class Record {
+
+		// Members
+		private byte mType;
+		private long mKey;
+		private ByteBuffer mPayload;
+
+		/**
+		 * Constructor.
+		 * @param type The type of the record.
+		 * @param key The key of the record.
+		 * @param payload The payload of the record.
+		 */
+		public Record(int type, long key, ByteBuffer payload) {
+			mType = (byte)type;
+			mKey = key;
+			mPayload = payload;
+		}
+
+		/**
+		 * Get the length of the record once encoded.
+		 * @return The encoded length.
+		 */
+		private int getLength() { return LogSegment.RECORD_HEADER_SIZE + mPayload.remaining(); }
+	}
+
+	/**
+	 * Receives the current records of one type.
+	 */
+	public interface PayloadVisitor {
+
+		/**
+		 * Called for each current record.
+		 * @param key The key of the record.
+		 * @param payload The payload of the record.
+		 */
+		void visit(long key, ByteBuffer payload);
+	}
+
+	/**
+	 * Position of the latest copy of a record.
+	 */
+	private static class Location {
+
+		// Members
+		private LogSegment mSegment;
+		private int mOffset;
+		private int mLength;
+
+		/**
+		 * Constructor.
+		 * @param segment The segment holding the record.
+		 * @param offset Offset of the record within the segment.
+		 * @param length Length of the record including its header.
+		 */
+		private Location(LogSegment segment, int offset, int length) {
+			mSegment = segment;
+			mOffset = offset;
+			mLength = length;
+		}
+	}
+
+	// Members
+	private File mDirectory;
+	private int mSegmentSize;
+	private ConcurrentSkipListMap<Integer, LogSegment> mSegments;
+	private ArrayList<ConcurrentHashMap<Long, Location>> mIndex;
+	private LogSegment mActive;
+	private ByteBuffer mWriteBuffer;
+	private Thread mCompactor;
+	private CountDownLatch mCompactorStop;
+
+	/**
+	 * Constructor.
+	 * @param directory The directory holding the segment files.
+	 * @param segmentSize Size in bytes at which a segment is sealed.
+	 */
+	private LogStore(File directory, int segmentSize) {
+		mDirectory = directory;
+		mSegmentSize = segmentSize;
+		mSegments = new ConcurrentSkipListMap<Integer, LogSegment>();
+		mIndex = new ArrayList<ConcurrentHashMap<Long, Location>>();
+		mWriteBuffer = ByteBuffer.allocateDirect(WRITE_BUFFER_SIZE);
+		mCompactorStop = new CountDownLatch(1);
+
+		for (int i = 0; i < MAX_TYPES; ++i) {
+			mIndex.add(new ConcurrentHashMap<Long, Location>());
+		}
+	}
+
+	/**
+	 * Open a store, creating it if it does not exist, and start compacting
+	 * it in the background.
+	 * @param directory The directory holding the segment files.
+	 * @param segmentSize Size in bytes at which a segment is sealed.
+	 * @return The store.
+	 * @throws IOException Thrown if the store cannot be opened.
+	 */
+	public static LogStore open(File directory, int segmentSize) throws IOException {
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("Could not create directory " + directory);
+		}
+
+		LogStore store = new LogStore(directory, Math.max(LogSegment.FILE_HEADER_SIZE + 1, segmentSize));
+		store.recover();
+		store.startCompactor();
+
+		return store;
+	}
+
+	/**
+	 * Rebuild the index from the segment files.
+	 * @throws IOException Thrown if a segment cannot be read.
+	 */
+	private void recover() throws IOException {
+		TreeMap<Integer, File> files = new TreeMap<Integer, File>();
+		File[] list = mDirectory.listFiles();
+
+		if (list != null) {
+			for (File file : list) {
+				String name = file.getName();
+
+				if (!name.endsWith(LogSegment.SUFFIX)) continue;
+
+				try {
+					files.put(Integer.parseInt(name.substring(0, name.length() - LogSegment.SUFFIX.length())), file);
+				} catch (NumberFormatException e) {
+					// Not a segment
+				}
+			}
+		}
+
+		for (Map.Entry<Integer, File> entry : files.entrySet()) {
+			final LogSegment segment = LogSegment.open(entry.getValue(), entry.getKey());
+			boolean newest = (entry.getKey().equals(files.lastKey()));
+
+			mSegments.put(segment.getId(), segment);
+
+			// Only the newest segment can hold a partly written record
+			int end = segment.scan((type, key, offset, length) -> {
+				if ((type >= 0) && (type < MAX_TYPES)) index(type, key, new Location(segment, offset, length));
+			}, newest);
+
+			if (end < segment.getSize()) {
+				System.out.println("Discarding " + (segment.getSize() - end) + " damaged bytes from segment " +
+						segment.getId());
+			}
+
+			if (newest) {
+				if (end < segment.getSize()) segment.truncate(end);
+
+				mActive = segment;
+			} else {
+				segment.seal();
+			}
+		}
+
+		if (mActive == null) {
+			mActive = LogSegment.create(mDirectory, 1);
+			mSegments.put(mActive.getId(), mActive);
+		}
+	}
+
+	/**
+	 * Write records to the log.  The records are written together, in order,
+	 * as one batch: after a crash either all of them are found or none are.
+	 * @param records The records to write.
+	 * @param sync True to wait until the records are on disk.
+	 * @throws IOException Thrown if the records cannot be written.
+	 */
+	public void append(List<Record> records, boolean sync) throws IOException {
+		int length = 0;
+
+		for (int i = 0; i < records.size(); ++i) {
+			length += records.get(i).getLength();
+		}
+
+		synchronized (this) {
+			ByteBuffer buffer = getWriteBuffer(length);
+
+			for (int i = 0; i < records.size(); ++i) {
+				Record record = records.get(i);
+				LogSegment.encode(buffer, record.mType, record.mKey, record.mPayload.duplicate(),
+						i == records.size() - 1);
+			}
+
+			buffer.flip();
+
+			LogSegment segment = getSegmentFor(length);
+			int offset = segment.append(buffer);
+
+			for (int i = 0; i < records.size(); ++i) {
+				Record record = records.get(i);
+				int recordLength = record.getLength();
+
+				index(record.mType, record.mKey, new Location(segment, offset, recordLength));
+				offset += recordLength;
+			}
+
+			if (sync) segment.force();
+		}
+	}
+
+	/**
+	 * Write a single record to the log.
+	 * @param record The record to write.
+	 * @param sync True to wait until the record is on disk.
+	 * @throws IOException Thrown if the record cannot be written.
+	 */
+	public void append(Record record, boolean sync) throws IOException {
+		append(Collections.singletonList(record), sync);
+	}
+
+	/**
+	 * Flush everything written so far to disk.
+	 * @throws IOException Thrown if the log cannot be flushed.
+	 */
+	public synchronized void sync() throws IOException {
+		mActive.force();
+	}
+
+	/**
+	 * Get the payload of the latest record with a given type and key.
+	 * @param type The type of the record.
+	 * @param key The key of the record.
+	 * @return The payload, or null if there is no such record.
+	 * @throws IOException Thrown if the record cannot be read or is damaged.
+	 */
+	public ByteBuffer get(int type, long key) throws IOException {
+		Location location = mIndex.get(type).get(key);
+
+		return (location == null ? null : read(location));
+	}
+
+	/**
+	 * Check if a record exists.
+	 * @param type The type of the record.
+	 * @param key The key of the record.
+	 * @return True if the record exists.
+	 */
+	public boolean contains(int type, long key) {
+		return mIndex.get(type).containsKey(key);
+	}
+
+	/**
+	 * Get the number of records of a type.
+	 * @param type The type of the records.
+	 * @return The number of records.
+	 */
+	public int size(int type) {
+		return mIndex.get(type).size();
+	}
+
+	/**
+	 * Read the latest copy of every record of a type, in no particular order.
+	 * @param type The type of the records.
+	 * @param visitor Receives each record.
+	 * @throws IOException Thrown if a record cannot be read or is damaged.
+	 */
+	public void forEach(int type, PayloadVisitor visitor) throws IOException {
+		for (Map.Entry<Long, Location> entry : mIndex.get(type).entrySet()) {
+			visitor.visit(entry.getKey(), read(entry.getValue()));
+		}
+	}
+
+	/**
+	 * Stop compacting and close every segment.  A compaction in progress is
+	 * allowed to finish; the compactor is never interrupted, since
+	 * interrupting it whilst it writes would close the segment's file.
+	 */
+	public void close() {
+		if (mCompactor != null) {
+			mCompactorStop.countDown();
+
+			try {
+				mCompactor.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+
+		synchronized (this) {
+			try {
+				mActive.force();
+			} catch (IOException e) {
+				System.out.println("Error flushing database: " + e);
+			}
+
+			for (LogSegment segment : mSegments.values()) {
+				segment.close();
+			}
+		}
+	}
+
+	/**
+	 * Compact every sealed segment whose records have mostly been replaced.
+	 * Called periodically by the compaction thread.
+	 * @throws IOException Thrown if a segment cannot be compacted.
+	 */
+	public void compact() throws IOException {
+		for (LogSegment segment : mSegments.values()) {
+			if (!segment.isSealed()) continue;
+
+			if (segment.getLiveBytes() < segment.getSize() * COMPACT_THRESHOLD) compact(segment);
+		}
+	}
+
+	/**
+	 * Copy the current records of a sealed segment to the head of the log and
+	 * delete the segment.
+	 * @param segment The segment to compact.
+	 * @throws IOException Thrown if the segment cannot be compacted.
+	 */
+	private void compact(final LogSegment segment) throws IOException {
+		final ArrayList<long[]> live = new ArrayList<long[]>();
+
+		segment.scan((type, key, offset, length) -> {
+			if (isCurrent(type, key, segment, offset)) live.add(new long[] { type, key, offset, length });
+		}, false);
+
+		int i = 0;
+
+		while (i < live.size()) {
+			synchronized (this) {
+				int length = 0;
+				int end = i;
+
+				while ((end < live.size()) && ((end == i) || (length < COMPACT_BATCH_SIZE))) {
+					length += (int)live.get(end)[3];
+					++end;
+				}
+
+				ByteBuffer buffer = getWriteBuffer(length);
+				ArrayList<long[]> copied = new ArrayList<long[]>();
+
+				// Records may have been replaced since the segment was scanned
+				for (int j = i; j < end; ++j) {
+					long[] record = live.get(j);
+
+					if (!isCurrent((byte)record[0], record[1], segment, (int)record[2])) continue;
+
+					if (!segment.copyTo((int)record[2], (int)record[3], buffer)) {
+						throw new IOException("Damaged record in segment " + segment.getId());
+					}
+
+					copied.add(record);
+				}
+
+				buffer.flip();
+
+				if (buffer.hasRemaining()) {
+					LogSegment target = getSegmentFor(buffer.remaining());
+					int offset = target.append(buffer);
+
+					for (long[] record : copied) {
+						index((byte)record[0], record[1], new Location(target, offset, (int)record[3]));
+						offset += (int)record[3];
+					}
+				}
+
+				i = end;
+			}
+		}
+
+		// The copies must be on disk before the originals are deleted
+		synchronized (this) {
+			mActive.force();
+			mSegments.remove(segment.getId());
+		}
+
+		segment.delete();
+	}
+
+	/**
+	 * Check if the index points at a particular copy of a record.
+	 * @param type The type of the record.
+	 * @param key The key of the record.
+	 * @param segment The segment holding the copy.
+	 * @param offset Offset of the copy within the segment.
+	 * @return True if the copy is the latest one.
+	 */
+	private boolean isCurrent(byte type, long key, LogSegment segment, int offset) {
+		if ((type < 0) || (type >= MAX_TYPES)) return false;
+
+		Location location = mIndex.get(type).get(key);
+
+		return (location != null) && (location.mSegment == segment) && (location.mOffset == offset);
+	}
+
+	/**
+	 * Point the index at the latest copy of a record, updating the amount of
+	 * live data in the segments involved.
+	 * @param type The type of the record.
+	 * @param key The key of the record.
+	 * @param location The position of the latest copy.
+	 */
+	private void index(byte type, long key, Location location) {
+		Location previous = mIndex.get(type).put(key, location);
+
+		if (previous != null) previous.mSegment.addLiveBytes(-previous.mLength);
+
+		location.mSegment.addLiveBytes(location.mLength);
+	}
+
+	/**
+	 * Read the payload of a record.
+	 * @param location The position of the record.
+	 * @return The payload.
+	 * @throws IOException Thrown if the record cannot be read or is damaged.
+	 */
+	private ByteBuffer read(Location location) throws IOException {
+		ByteBuffer record = location.mSegment.read(location.mOffset, location.mLength);
+
+		if (record == null) throw new IOException("Damaged record in segment " + location.mSegment.getId());
+
+		return LogSegment.getPayload(record);
+	}
+
+	/**
+	 * Get the segment to append to, starting a new one if the active segment
+	 * has no room.  Must be called with the store locked.
+	 * @param length Number of bytes about to be written.
+	 * @return The segment to write to.
+	 * @throws IOException Thrown if a new segment cannot be created.
+	 */
+	private LogSegment getSegmentFor(int length) throws IOException {
+		if ((mActive.getSize() > LogSegment.FILE_HEADER_SIZE) && ((long)mActive.getSize() + length > mSegmentSize)) {
+			LogSegment next = LogSegment.create(mDirectory, mActive.getId() + 1);
+
+			mActive.seal();
+			mSegments.put(next.getId(), next);
+			mActive = next;
+		}
+
+		return mActive;
+	}
+
+	/**
+	 * Get the write buffer, cleared and large enough for a batch.  Must be
+	 * called with the store locked.
+	 * @param length Number of bytes needed.
+	 * @return The write buffer.
+	 */
+	private ByteBuffer getWriteBuffer(int length) {
+		if (mWriteBuffer.capacity() < length) {
+			mWriteBuffer = ByteBuffer.allocateDirect(Math.max(length, mWriteBuffer.capacity() * 2));
+		}
+
+		mWriteBuffer.clear();
+
+		return mWriteBuffer;
+	}
+
+	/**
+	 * Start the thread that compacts the store in the background.
+	 */
+	private void startCompactor() {
+		mCompactor = new Thread("Compactor") {
+			@Override
+			public void run() {
+				while (true) {
+					try {
+						if (mCompactorStop.await(COMPACT_INTERVAL, TimeUnit.MILLISECONDS)) return;
+
+						compact();
+					} catch (InterruptedException e) {
+						return;
+					} catch (IOException e) {
+						System.out.println("Error compacting database: " + e);
+					}
+				}
+			}
+		};
+
+		mCompactor.setDaemon(true);
+		mCompactor.start();
+	}
+}
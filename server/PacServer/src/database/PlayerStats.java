@@ -121,17 +121,18 @@ public class PlayerStats {
 	 */
 	@Override
 	public String toString() {
-		String statsString = "";
-		statsString += mUsername + ",";
-		statsString += mFavouriteGame + ",";
-		statsString += mLastGamePlayed + ",";
-		statsString += mLastGamePlayedDate + ",";
-		statsString += mNumberOfGamesPlayed + ",";
-		statsString += mNumberOfDisconnects + ",";
-		statsString += mNumberOfGamesWon + ",";
-		statsString += mTotalTimePlayed + ",";
-		statsString += mRanking;
+		StringBuilder builder = new StringBuilder();
 
-		return statsString;
+		builder.append(mUsername).append(",");
+		builder.append(mFavouriteGame).append(",");
+		builder.append(mLastGamePlayed).append(",");
+		builder.append(mLastGamePlayedDate).append(",");
+		builder.append(mNumberOfGamesPlayed).append(",");
+		builder.append(mNumberOfDisconnects).append(",");
+		builder.append(mNumberOfGamesWon).append(",");
+		builder.append(mTotalTimePlayed).append(",");
+		builder.append(mRanking);
+
+		return builder.toString();
 	}
 }
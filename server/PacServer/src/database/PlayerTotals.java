@@ -0,0 +1,197 @@
+package database;
+
+import java.text.*;
+import java.util.*;
+
+/**
+ * Running totals of every game a player has taken part in, kept in memory
+ * and updated as each game is saved.  The number of times each game has
+ * been played is kept in a small histogram so that the player's favourite
+ * game can be found without looking at their history.
+ *
+ * Readers are given an immutable PlayerStats snapshot, which is replaced
+ * whenever the totals change, so reading a player's stats costs the same no
+ * matter how many games they have played.
+ */
+public class PlayerTotals {
+
+	// Members
+	private int mPlayerId;
+	private String mUsername;
+	private int mGamesPlayed;
+	private int mDisconnects;
+	private int mGamesWon;
+	private long mTotalDuration;
+	private int mLastGameId;
+	private long mLastPlayedDate;
+	private int[] mGameIds;
+	private int[] mGameCounts;
+	private volatile PlayerStats mSnapshot;
+
+	/**
+	 * Constructor.
+	 * @param playerId The ID of the player.
+	 * @param username The player's username.
+	 */
+	public PlayerTotals(int playerId, String username) {
+		mPlayerId = playerId;
+		mUsername = username;
+		mLastGameId = -1;
+		mLastPlayedDate = -1;
+		mGameIds = new int[0];
+		mGameCounts = new int[0];
+		mSnapshot = null;
+	}
+
+	/**
+	 * Get the ID of the player.
+	 * @return The ID of the player.
+	 */
+	public int getPlayerId() { return mPlayerId; }
+
+	/**
+	 * Get the player's username.
+	 * @return The player's username.
+	 */
+	public String getUsername() { return mUsername; }
+
+	/**
+	 * Add a game to the totals.  Games may be added in any order.
+	 * @param gameId The ID of the game played.
+	 * @param startDate The time at which the game started.
+	 * @param duration The duration of the game.
+	 * @param won True if the player won the game.
+	 * @param disconnected True if the player disconnected during the game.
+	 */
+	public synchronized void add(int gameId, long startDate, long duration, boolean won, boolean disconnected) {
+		mGamesPlayed++;
+		mTotalDuration += duration;
+
+		if (won) mGamesWon++;
+		if (disconnected) mDisconnects++;
+
+		if (startDate >= mLastPlayedDate) {
+			mLastPlayedDate = startDate;
+			mLastGameId = gameId;
+		}
+
+		// Count the game in the histogram
+		for (int i = 0; i < mGameIds.length; ++i) {
+			if (mGameIds[i] == gameId) {
+				mGameCounts[i]++;
+				return;
+			}
+		}
+
+		mGameIds = Arrays.copyOf(mGameIds, mGameIds.length + 1);
+		mGameCounts = Arrays.copyOf(mGameCounts, mGameCounts.length + 1);
+		mGameIds[mGameIds.length - 1] = gameId;
+		mGameCounts[mGameCounts.length - 1] = 1;
+	}
+
+	/**
+	 * Get the ID of the game the player has played most often.
+	 * @return The ID of the favourite game, or -1 if no games have been
+	 * played.
+	 */
+	public synchronized int getFavouriteGameId() {
+		int favourite = -1;
+		int count = 0;
+
+		for (int i = 0; i < mGameIds.length; ++i) {
+			if (mGameCounts[i] > count) {
+				favourite = mGameIds[i];
+				count = mGameCounts[i];
+			}
+		}
+
+		return favourite;
+	}
+
+	/**
+	 * Publish the current totals to readers.  Called once after a game has
+	 * been added.
+	 * @param games The list of games, used to name them.
+	 */
+	public synchronized void publish(GameList games) {
+		mSnapshot = new PlayerStats(mUsername, getGameName(games, getFavouriteGameId()),
+				getGameName(games, mLastGameId), formatDate(mLastPlayedDate), mGamesPlayed, mDisconnects,
+				mGamesWon, String.valueOf(mTotalDuration), Database.getRank(mGamesPlayed));
+	}
+
+	/**
+	 * Get the current stats.  The returned object is shared by every reader
+	 * until the totals next change.
+	 * @return The current stats, or null if they have never been published.
+	 */
+	public PlayerStats getSnapshot() { return mSnapshot; }
+
+	/**
+	 * Get the number of games played.
+	 * @return The number of games played.
+	 */
+	public synchronized int getGamesPlayed() { return mGamesPlayed; }
+
+	/**
+	 * Get the number of games the player disconnected from.
+	 * @return The number of disconnects.
+	 */
+	public synchronized int getDisconnects() { return mDisconnects; }
+
+	/**
+	 * Get the number of games won.
+	 * @return The number of games won.
+	 */
+	public synchronized int getGamesWon() { return mGamesWon; }
+
+	/**
+	 * Get the total time spent playing.
+	 * @return The total duration of every game played.
+	 */
+	public synchronized long getTotalDuration() { return mTotalDuration; }
+
+	/**
+	 * Get the ID of the game played most recently.
+	 * @return The ID of the last game, or -1 if no games have been played.
+	 */
+	public synchronized int getLastGameId() { return mLastGameId; }
+
+	/**
+	 * Get the time at which the most recent game started.
+	 * @return The time of the last game, or -1 if no games have been played.
+	 */
+	public synchronized long getLastPlayedDate() { return mLastPlayedDate; }
+
+	/**
+	 * Create the stats of a player that has not played any games.
+	 * @param username The player's username.
+	 * @return The stats.
+	 */
+	public static PlayerStats getEmptyStats(String username) {
+		return new PlayerStats(username, getGameName(null, -1), getGameName(null, -1), formatDate(-1),
+				0, 0, 0, "0", Database.getRank(0));
+	}
+
+	/**
+	 * Get the name of a game.
+	 * @param games The list of games.
+	 * @param gameId The ID of the game.
+	 * @return The name of the game.
+	 */
+	private static String getGameName(GameList games, int gameId) {
+		GameData game = (games == null ? null : games.getGameDataByID(gameId));
+
+		return (game == null ? "None" : game.getName());
+	}
+
+	/**
+	 * Format the date of a game for display.
+	 * @param date The time at which the game started.
+	 * @return The formatted date.
+	 */
+	private static String formatDate(long date) {
+		if (date < 0) return "Never";
+
+		return new SimpleDateFormat("d MMMM yyyy").format(new Date(date));
+	}
+}
@@ -0,0 +1,234 @@
+package database;
+
+import java.util.*;
+
+/**
+ * Ratings of every player that has finished a game, kept so that a player's
+ * position among all rated players can be found without sorting them.
+ * Ratings are whole numbers in a fixed range, and a Fenwick tree holds the
+ * number of players at each rating.  Finding a player's position, or the
+ * number of players within a range of ratings, costs a number of steps that
+ * depends only on the size of the range of ratings, never on the number of
+ * players.
+ *
+ * Ratings are adjusted after each game in the manner of the Elo system: every
+ * player is compared with every other player in the game, and gains or loses
+ * points according to how far the outcome differs from the outcome expected
+ * from the ratings before the game.
+ */
+public class RatingTable {
+
+	// Constants
+
+	/** Rating given to a player before their first game */
+	public static final int INITIAL_RATING = 1000;
+
+	/** Highest possible rating */
+	public static final int MAX_RATING = 4095;
+
+	/** Largest number of points a player can gain or lose in one game */
+	private static final int K_FACTOR = 32;
+
+	// Members
+	private HashMap<Integer, Integer> mRatings;
+	private int[] mTree;
+
+	/**
+	 * Constructor.
+	 */
+	public RatingTable() {
+		mRatings = new HashMap<Integer, Integer>();
+		mTree = new int[MAX_RATING + 2];
+	}
+
+	/**
+	 * Adjust the ratings of the players in a game.  Players that disconnected
+	 * are treated as having lost to every player that did not.  Players that
+	 * have not been rated before start from the initial rating.
+	 * @param playerIds The IDs of the players.
+	 * @param scores The players' scores.
+	 * @param disconnected True for each player that disconnected.
+	 * @param count The number of players.
+	 */
+	public synchronized void addGame(int[] playerIds, int[] scores, boolean[] disconnected, int count) {
+		if (count < 2) return;
+
+		int[] ratings = new int[count];
+
+		for (int i = 0; i < count; ++i) {
+			ratings[i] = getRatingOrInitial(playerIds[i]);
+		}
+
+		for (int i = 0; i < count; ++i) {
+			double expected = 0;
+			double actual = 0;
+
+			for (int j = 0; j < count; ++j) {
+				if (i == j) continue;
+
+				expected += 1.0 / (1.0 + Math.pow(10, (ratings[j] - ratings[i]) / 400.0));
+				actual += getOutcome(scores[i], disconnected[i], scores[j], disconnected[j]);
+			}
+
+			int change = (int)Math.round(K_FACTOR * (actual - expected) / (count - 1));
+
+			setRating(playerIds[i], Math.max(0, Math.min(MAX_RATING, ratings[i] + change)));
+		}
+	}
+
+	/**
+	 * Get the rating of a player.
+	 * @param playerId The ID of the player.
+	 * @return The player's rating, or -1 if the player has not been rated.
+	 */
+	public synchronized int getRating(int playerId) {
+		Integer rating = mRatings.get(playerId);
+
+		return (rating == null ? -1 : rating);
+	}
+
+	/**
+	 * Get the position of a player among all rated players.  Players with the
+	 * same rating share a position.
+	 * @param playerId The ID of the player.
+	 * @return The player's position, starting from 1, or 0 if the player has
+	 * not been rated.
+	 */
+	public synchronized int getRank(int playerId) {
+		Integer rating = mRatings.get(playerId);
+
+		if (rating == null) return 0;
+
+		return getPlayerCount(rating + 1, MAX_RATING) + 1;
+	}
+
+	/**
+	 * Get the rating and position of a player together.
+	 * @param playerId The ID of the player.
+	 * @return The player's rating and position.
+	 */
+	public synchronized PlayerRank getPlayerRank(int playerId) {
+		return new PlayerRank(getRating(playerId), getRank(playerId), mRatings.size());
+	}
+
+	/**
+	 * Get the number of players with ratings in a range.
+	 * @param lowest The lowest rating in the range.
+	 * @param highest The highest rating in the range.
+	 * @return The number of players with ratings in the range.
+	 */
+	public synchronized int getPlayerCount(int lowest, int highest) {
+		lowest = Math.max(0, lowest);
+		highest = Math.min(MAX_RATING, highest);
+
+		if (lowest > highest) return 0;
+
+		return countUpTo(highest) - (lowest > 0 ? countUpTo(lowest - 1) : 0);
+	}
+
+	/**
+	 * Get the rating held by the player at a given position.
+	 * @param rank The position, starting from 1 for the best player.
+	 * @return The rating at that position, or -1 if there are fewer players.
+	 */
+	public synchronized int getRatingAtRank(int rank) {
+		if ((rank < 1) || (rank > mRatings.size())) return -1;
+
+		// Find the lowest rating with enough players at or below it
+		int remaining = mRatings.size() - rank + 1;
+		int index = 0;
+
+		for (int step = Integer.highestOneBit(mTree.length - 1); step > 0; step >>= 1) {
+			int next = index + step;
+
+			if ((next < mTree.length) && (mTree[next] < remaining)) {
+				index = next;
+				remaining -= mTree[index];
+			}
+		}
+
+		return index;
+	}
+
+	/**
+	 * Get the number of rated players.
+	 * @return The number of rated players.
+	 */
+	public synchronized int size() {
+		return mRatings.size();
+	}
+
+	/**
+	 * Remove every rating.
+	 */
+	public synchronized void clear() {
+		mRatings.clear();
+		Arrays.fill(mTree, 0);
+	}
+
+	/**
+	 * Get the rating of a player, or the initial rating if the player has not
+	 * been rated.
+	 * @param playerId The ID of the player.
+	 * @return The player's rating.
+	 */
+	private int getRatingOrInitial(int playerId) {
+		Integer rating = mRatings.get(playerId);
+
+		return (rating == null ? INITIAL_RATING : rating);
+	}
+
+	/**
+	 * Change the rating of a player.
+	 * @param playerId The ID of the player.
+	 * @param rating The new rating.
+	 */
+	private void setRating(int playerId, int rating) {
+		Integer previous = mRatings.put(playerId, rating);
+
+		if (previous != null) update(previous, -1);
+
+		update(rating, 1);
+	}
+
+	/**
+	 * Change the number of players at a rating.
+	 * @param rating The rating.
+	 * @param change The number of players to add.
+	 */
+	private void update(int rating, int change) {
+		for (int i = rating + 1; i < mTree.length; i += i & -i) {
+			mTree[i] += change;
+		}
+	}
+
+	/**
+	 * Count the players with ratings no higher than a given rating.
+	 * @param rating The highest rating to count.
+	 * @return The number of players.
+	 */
+	private int countUpTo(int rating) {
+		int count = 0;
+
+		for (int i = rating + 1; i > 0; i -= i & -i) {
+			count += mTree[i];
+		}
+
+		return count;
+	}
+
+	/**
+	 * Get the outcome of one player's game against another.
+	 * @param score The player's score.
+	 * @param disconnected True if the player disconnected.
+	 * @param otherScore The other player's score.
+	 * @param otherDisconnected True if the other player disconnected.
+	 * @return 1 for a win, 0.5 for a draw and 0 for a loss.
+	 */
+	private static double getOutcome(int score, boolean disconnected, int otherScore, boolean otherDisconnected) {
+		if (disconnected != otherDisconnected) return (disconnected ? 0 : 1);
+		if (disconnected || (score == otherScore)) return 0.5;
+
+		return (score > otherScore ? 1 : 0);
+	}
+}
@@ -0,0 +1,155 @@
+package database;
+
+import java.util.*;
+
+/**
+ * The best scores achieved in one game today and over the last week.  Scores
+ * are kept in one bounded table per day, held in a ring with a slot for each
+ * day of the week.  When a new day starts, the slot of the day that has left
+ * the week is simply reused, so old scores roll off without any history
+ * being read again.
+ *
+ * The daily list is the table of the current day.  The weekly list is made
+ * by merging the tables of the last seven days, each of which holds no more
+ * scores than the list itself, so building it costs the same no matter how
+ * many games have been played.  Both lists are published as immutable
+ * snapshots whenever a score is added or the day changes.
+ *
+ * Days are counted from the epoch in UTC, so both lists roll over at
+ * midnight UTC whatever the server's time zone; "today" for a player far
+ * from UTC starts part way through their local day.
+ */
+public class RecentHighScores {
+
+	// Constants
+
+	/** Length of a day in milliseconds; days begin at midnight UTC */
+	public static final long DAY = 24L * 60 * 60 * 1000;
+
+	/** Number of days in the weekly list */
+	public static final int DAYS_KEPT = 7;
+
+	// Members
+	private int mGameId;
+	private int mSize;
+	private HighScoreTable[] mDays;
+	private long[] mDayNumbers;
+	private volatile long mPublishedDay;
+	private volatile HighScoreData mDaily;
+	private volatile HighScoreData mWeekly;
+
+	/**
+	 * Constructor.
+	 * @param gameId The ID of the game.
+	 * @param size The number of scores to keep in each list.
+	 */
+	public RecentHighScores(int gameId, int size) {
+		mGameId = gameId;
+		mSize = Math.max(1, size);
+		mDays = new HighScoreTable[DAYS_KEPT];
+		mDayNumbers = new long[DAYS_KEPT];
+		mPublishedDay = -1;
+		mDaily = new HighScoreData(gameId);
+		mWeekly = new HighScoreData(gameId);
+
+		Arrays.fill(mDayNumbers, -1);
+	}
+
+	/**
+	 * Offer a score to the lists.  Scores from games older than a week are
+	 * ignored.
+	 * @param score The score achieved.
+	 * @param username The player that achieved the score.
+	 * @param date The time at which the game was played.
+	 * @return True if a list changed.
+	 */
+	public synchronized boolean add(int score, String username, long date) {
+		long day = date / DAY;
+
+		if (day <= getToday() - DAYS_KEPT) return false;
+
+		int slot = (int)(day % DAYS_KEPT);
+
+		if (mDayNumbers[slot] != day) {
+
+			// The slot holds a later day, so this day has already rolled off
+			if (mDayNumbers[slot] > day) return false;
+
+			mDays[slot] = new HighScoreTable(mGameId, mSize);
+			mDayNumbers[slot] = day;
+		}
+
+		return mDays[slot].add(score, username);
+	}
+
+	/**
+	 * Publish the current contents of the lists to readers.  Called once
+	 * after a batch of scores has been added.
+	 */
+	public synchronized void publish() {
+		publish(getToday());
+	}
+
+	/**
+	 * Get the scores of one of the lists, best first.  The lists are published
+	 * again if the day has changed since they were last published.  The
+	 * returned object must not be modified.
+	 * @param window HighScoreData.WINDOW_DAILY or HighScoreData.WINDOW_WEEKLY.
+	 * @return The current scores.
+	 */
+	public HighScoreData getSnapshot(int window) {
+		long today = getToday();
+
+		if (today != mPublishedDay) {
+			synchronized (this) {
+				if (today != mPublishedDay) publish(today);
+			}
+		}
+
+		return (window == HighScoreData.WINDOW_DAILY ? mDaily : mWeekly);
+	}
+
+	/**
+	 * Build and publish the lists for a given day.
+	 * @param today The number of the current day.
+	 */
+	private void publish(long today) {
+		HighScoreData daily = new HighScoreData(mGameId);
+		HighScoreData weekly = new HighScoreData(mGameId);
+
+		for (int slot = 0; slot < DAYS_KEPT; ++slot) {
+			long day = mDayNumbers[slot];
+
+			// Days that have left the week are skipped until the slot is reused
+			if ((day <= today - DAYS_KEPT) || (day > today)) continue;
+
+			mDays[slot].publish();
+
+			HighScoreData scores = mDays[slot].getSnapshot();
+
+			if (day == today) daily = scores;
+
+			weekly.addAll(scores);
+		}
+
+		Collections.sort(weekly, (a, b) -> Integer.compare(b.getScore(), a.getScore()));
+
+		while (weekly.size() > mSize) {
+			weekly.remove(weekly.size() - 1);
+		}
+
+		weekly.trimToSize();
+
+		mDaily = daily;
+		mWeekly = weekly;
+		mPublishedDay = today;
+	}
+
+	/**
+	 * Get the number of the current day.
+	 * @return The number of days since the epoch.
+	 */
+	private static long getToday() {
+		return System.currentTimeMillis() / DAY;
+	}
+}
@@ -0,0 +1,241 @@
+package database;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * Write-behind queue for game results.  Finished games are queued and written
+ * by a single thread in groups: every game waiting when the thread is ready,
+ * plus any that arrive within a short delay, is written as one batch with a
+ * single flush to disk.  When many sessions end at once this turns many
+ * small durable writes into a few large ones.
+ *
+ * A game is never kept waiting for longer than the commit delay plus the
+ * time taken to write the batch ahead of it.
+ */
+public class ResultWriter extends Thread {
+
+	// Constants
+
+	/** Default time in milliseconds to wait for more games before writing */
+	public static final long DEFAULT_COMMIT_DELAY = 5;
+
+	/** Default number of games that can wait to be written */
+	public static final int DEFAULT_QUEUE_SIZE = 4096;
+
+	/** Maximum number of games written in one batch */
+	private static final int MAX_BATCH_SIZE = 256;
+
+	/** Time in milliseconds an idle writer waits before checking for shutdown */
+	private static final long IDLE_WAIT = 100;
+
+	/**
+	 * A finished game waiting to be written.
+	 */
+	private static class PendingResult {
+
+		// Members
+		private int mGameId;
+		private int mWinnerId;
+		private long mStartDate;
+		private long mDuration;
+		private GameResultList mResultList;
+		private CompletableFuture<Void> mFuture;
+		private GameHistoryData mHistory;
+
+		/**
+		 * Constructor.
+		 * @param gameId The ID of the game.
+		 * @param winnerId The ID of the game winner (player ID).
+		 * @param startDate The date on which the game started.
+		 * @param duration The duration of the game.
+		 * @param resultList The results to save.
+		 */
+		private PendingResult(int gameId, int winnerId, long startDate, long duration, GameResultList resultList) {
+			mGameId = gameId;
+			mWinnerId = winnerId;
+			mStartDate = startDate;
+			mDuration = duration;
+			mResultList = resultList;
+			mFuture = new CompletableFuture<Void>();
+		}
+	}
+
+	// Members
+	private ArrayBlockingQueue<PendingResult> mQueue;
+	private ArrayList<PendingResult> mBatch;
+	private ArrayList<LogStore.Record> mRecords;
+	private long mCommitDelay;
+	private volatile boolean mRunning;
+	private AtomicLong mBatchCount;
+	private AtomicLong mGameCount;
+
+	/**
+	 * Constructor.
+	 * @param commitDelay Time in milliseconds to wait for more games before
+	 * writing a batch.
+	 * @param queueSize Number of games that can wait to be written.
+	 */
+	public ResultWriter(long commitDelay, int queueSize) {
+		super("ResultWriter");
+
+		mQueue = new ArrayBlockingQueue<PendingResult>(Math.max(1, queueSize));
+		mBatch = new ArrayList<PendingResult>();
+		mRecords = new ArrayList<LogStore.Record>();
+		mCommitDelay = Math.max(0, commitDelay);
+		mRunning = true;
+		mBatchCount = new AtomicLong(0);
+		mGameCount = new AtomicLong(0);
+
+		setDaemon(true);
+	}
+
+	/**
+	 * Queue a finished game to be written.  Never waits; if the queue is full
+	 * the returned future fails straight away.
+	 * @param gameId The ID of the game.
+	 * @param winnerId The ID of the game winner (player ID).
+	 * @param startDate The date on which the game started.
+	 * @param duration The duration of the game.
+	 * @param resultList The results to save.
+	 * @return A future that completes once the game is on disk.
+	 */
+	public CompletableFuture<Void> submit(int gameId, int winnerId, long startDate, long duration,
+			GameResultList resultList) {
+		PendingResult result = new PendingResult(gameId, winnerId, startDate, duration, resultList);
+
+		if (!mRunning || !mQueue.offer(result)) {
+			result.mFuture.completeExceptionally(new RejectedExecutionException("Result queue full"));
+		}
+
+		return result.mFuture;
+	}
+
+	/**
+	 * Get the number of batches written.
+	 * @return The number of batches.
+	 */
+	public long getBatchCount() { return mBatchCount.get(); }
+
+	/**
+	 * Get the number of games written.
+	 * @return The number of games.
+	 */
+	public long getGameCount() { return mGameCount.get(); }
+
+	/**
+	 * Stop accepting games and wait until every queued game has been written.
+	 * The writer is never interrupted, since interrupting a thread whilst it
+	 * writes to the store would close the store's file.
+	 */
+	public void shutdown() {
+		mRunning = false;
+
+		try {
+			join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Write queued games in batches until shut down.
+	 */
+	@Override
+	public void run() {
+		while (mRunning || !mQueue.isEmpty()) {
+			try {
+				collectBatch();
+			} catch (InterruptedException e) {
+
+				// Not expected; write whatever is left without waiting
+				mQueue.drainTo(mBatch, MAX_BATCH_SIZE - mBatch.size());
+			}
+
+			if (!mBatch.isEmpty()) writeBatch();
+		}
+
+		// Games queued whilst the writer was stopping are never written
+		PendingResult result;
+
+		while ((result = mQueue.poll()) != null) {
+			result.mFuture.completeExceptionally(new RejectedExecutionException("Result writer stopped"));
+		}
+	}
+
+	/**
+	 * Wait for a game, then gather every game that arrives within the commit
+	 * delay, up to the maximum batch size.  Returns with an empty batch if no
+	 * game arrives within the idle wait, so that the writer notices when it
+	 * is shut down.
+	 * @throws InterruptedException Thrown if the writer is interrupted.
+	 */
+	private void collectBatch() throws InterruptedException {
+		PendingResult first = mQueue.poll(IDLE_WAIT, TimeUnit.MILLISECONDS);
+
+		if (first == null) return;
+
+		mBatch.add(first);
+		mQueue.drainTo(mBatch, MAX_BATCH_SIZE - mBatch.size());
+
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(mCommitDelay);
+
+		while (mBatch.size() < MAX_BATCH_SIZE) {
+			long remaining = deadline - System.nanoTime();
+
+			if (remaining <= 0) break;
+
+			PendingResult result = mQueue.poll(remaining, TimeUnit.NANOSECONDS);
+
+			if (result == null) break;
+
+			mBatch.add(result);
+			mQueue.drainTo(mBatch, MAX_BATCH_SIZE - mBatch.size());
+		}
+	}
+
+	/**
+	 * Write the current batch with a single flush, then complete the futures
+	 * of every game in it.
+	 */
+	private void writeBatch() {
+		RuntimeException error = null;
+
+		try {
+			AsyncDatabase.injectLatency();
+		} catch (InterruptedException e) {
+			// Not expected, since the writer is never interrupted; write the
+			// batch straight away
+		}
+
+		try {
+			for (PendingResult result : mBatch) {
+				result.mHistory = Database.addGameResults(mRecords, result.mGameId, result.mWinnerId, result.mStartDate,
+						result.mDuration, result.mResultList);
+			}
+
+			Database.write(mRecords);
+
+			for (PendingResult result : mBatch) {
+				Database.applyGameResults(result.mHistory, result.mResultList);
+			}
+
+			mBatchCount.incrementAndGet();
+			mGameCount.addAndGet(mBatch.size());
+		} catch (RuntimeException e) {
+			error = e;
+		}
+
+		for (PendingResult result : mBatch) {
+			if (error == null) {
+				result.mFuture.complete(null);
+			} else {
+				result.mFuture.completeExceptionally(error);
+			}
+		}
+
+		mBatch.clear();
+		mRecords.clear();
+	}
+}
@@ -1,7 +1,13 @@
 package pacserver;
 
-import java.net.*;
 import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.*;
+import java.util.function.*;
 import database.*;
 
 /**
@@ -52,7 +58,10 @@ public class Client {
 	
 	/** Sent when a client requests game stats */
 	public static final int MESSAGE_GAME_STATS = -14;
-        
+
+	/** Sent when a client requests its rating and position */
+	public static final int MESSAGE_PLAYER_RANK = -15;
+
 	// Addresses
 	
 	/** Address of the server */
@@ -66,64 +75,177 @@ public class Client {
 	/** Default username for non-logged in clients */
 	public static final String DEFAULT_USERNAME = "Not Authenticated";
 	
-	/** Maximum time between messages before client is presumed dead. */
-	public static final long DEAD_CLIENT_TIMEOUT = 8000000;
+	/** Maximum time in milliseconds between messages before client is presumed dead. */
+	public static final long DEAD_CLIENT_TIMEOUT = 60000;
 	
-	/** Time between pings */
-	public static final long PING_TIME = 600000;
+	/** Time in milliseconds between pings */
+	public static final long PING_TIME = 30000;
+
+	/** Initial size of the read buffer */
+	private static final int BUFFER_SIZE = 1024;
+
+	/** Maximum number of queued messages passed to a single write */
+	private static final int MAX_GATHER = 64;
+
+	/**
+	 * Number of places in each write kept for gameplay messages whilst
+	 * control messages are waiting
+	 */
+	private static final int GAMEPLAY_GATHER = MAX_GATHER / 4;
+
+	/** Default maximum time in milliseconds that output is held back for batching */
+	public static final long DEFAULT_FLUSH_DELAY = 0;
+
+	/** Default maximum number of messages waiting to be written to a client */
+	public static final int DEFAULT_MAX_OUTBOUND = 256;
+
+	/**
+	 * Time in milliseconds a client's outbound queue can stay full before the
+	 * client is disconnected
+	 */
+	public static final long OVERFLOW_TIMEOUT = 5000;
+
+	/** Time in nanoseconds a blocking reader waits for room in a full postbox */
+	private static final long FULL_POSTBOX_WAIT = 100000;
 	
 	// Members
 	private int mId;
 	private String mUsername;
 	private int mPlayerId;
-	private Socket mSocket;
-	private PrintWriter mToClient = null;
-	private BufferedReader mFromClient = null;
-	private PostBox mPostBox = null;
+	private SocketChannel mChannel;
+	private SelectionKey mKey = null;
+	private ByteBuffer mReadBuffer;
+	private ArrayDeque<ByteBuffer> mControlOutbound;
+	private ArrayDeque<Boolean> mControlFrameEnds;
+	private int mControlMessages;
+	private ArrayDeque<ByteBuffer> mOutbound;
+	private ArrayDeque<Message> mOutboundMessages;
+	private long mOverflowStart;
+	private long mDroppedCount;
+	private ByteBuffer[] mGather;
+	private boolean mFlushPending;
+	private long mFlushDeadline;
+	private int mReadProtocol;
+	private int mWriteProtocol;
+	private volatile PostBox mPostBox = null;
 	private boolean mIsAuthenticated;
 	private GameResultList mResultList = null;
-	private long mLastMessageTime;
-	private boolean mIsDead;
-	private long mPingTime;
+	private volatile long mLastMessageTime;
+	private volatile boolean mIsDead;
+	private TimerWheel.Timeout mAliveTimeout = null;
+	private TimerWheel.Timeout mPingTimeout = null;
+	private volatile EncodedPayload mPlayerStatsPayload = null;
+
+	private static volatile long mFlushDelay = DEFAULT_FLUSH_DELAY;
+	private static volatile int mMaxOutbound = DEFAULT_MAX_OUTBOUND;
+	private static AtomicLong mTotalDroppedCount = new AtomicLong(0);
+
+	/** Runs tasks on the thread hosting the client's group */
+	private final Executor mGroupExecutor = task -> {
+		PostBox postBox = mPostBox;
+
+		if (postBox != null) postBox.execute(task);
+	};
 
 	/**
 	 * Constructor.
 	 * @param id ID pf the new client.
-	 * @param socket Socket to communicate with client on.
+	 * @param channel Channel to communicate with client on.
 	 * @param postBox The postbox that the client will listen to/post to.
 	 */
-	public Client(int id, Socket socket, PostBox postBox) throws IOException {
+	public Client(int id, SocketChannel channel, PostBox postBox) throws IOException {
 		mId = id;
 		mUsername = DEFAULT_USERNAME;
-		mSocket = socket;
-		mToClient = new PrintWriter(mSocket.getOutputStream(), true);
-		mFromClient = new BufferedReader(new InputStreamReader(mSocket.getInputStream()));
+		mChannel = channel;
+		mChannel.configureBlocking(false);
+		mReadBuffer = ByteBuffer.allocate(BUFFER_SIZE);
+		mControlOutbound = new ArrayDeque<ByteBuffer>();
+		mControlFrameEnds = new ArrayDeque<Boolean>();
+		mControlMessages = 0;
+		mOutbound = new ArrayDeque<ByteBuffer>();
+		mOutboundMessages = new ArrayDeque<Message>();
+		mOverflowStart = 0;
+		mDroppedCount = 0;
+		mGather = new ByteBuffer[MAX_GATHER];
+		mFlushPending = false;
+		mReadProtocol = Protocol.VERSION_TEXT;
+		mWriteProtocol = Protocol.VERSION_TEXT;
 		mPostBox = postBox;
 		mIsAuthenticated = false;
-		mLastMessageTime = 0;
+		mLastMessageTime = System.currentTimeMillis();
 		mIsDead = false;
-		mPingTime = 0;
+
+		scheduleAliveCheck(DEAD_CLIENT_TIMEOUT);
+		schedulePing();
 	}
 	
 	/**
 	 * Close the client connections.
 	 */
-	public void close() {
-		mToClient.close();
-		
+	public synchronized void close() {
+		deregister();
+
+		// Stop the heartbeat timers
+		if (mAliveTimeout != null) mAliveTimeout.cancel();
+		if (mPingTimeout != null) mPingTimeout.cancel();
+
+		// Nothing more can be written
+		clearOutbound();
+
 		try {
-			mFromClient.close();
+			mChannel.close();
 		} catch (IOException e) {
 			// Ignore
 		}
-		
+	}
+
+	/**
+	 * Register the client's channel with a selector.  Any existing
+	 * registration is cancelled first.  Must be called by the thread that
+	 * owns the selector.
+	 * @param selector The selector to register with.
+	 */
+	public synchronized void register(Selector selector) {
+		deregister();
+
+		if (!mChannel.isOpen()) return;
+
 		try {
-			mSocket.close();
+			try {
+				mKey = mChannel.register(selector, getInterestOps(), this);
+			} catch (CancelledKeyException e) {
+
+				// A cancelled key for this selector has not yet been flushed;
+				// flush it and try again
+				selector.selectNow();
+				mKey = mChannel.register(selector, getInterestOps(), this);
+			}
 		} catch (IOException e) {
-			// Ignore
+			System.out.println("Error registering client");
+			mIsDead = true;
 		}
 	}
 
+	/**
+	 * Cancel the client's registration with its current selector.
+	 */
+	public synchronized void deregister() {
+		if (mKey != null) {
+			mKey.cancel();
+			mKey = null;
+		}
+	}
+
+	/**
+	 * Get the operations that the client's channel is interested in.  Always
+	 * interested in reads; interested in writes if there is pending output.
+	 * @return The interest set.
+	 */
+	private int getInterestOps() {
+		if (!mControlOutbound.isEmpty() || !mOutbound.isEmpty()) return SelectionKey.OP_READ | SelectionKey.OP_WRITE;
+		return SelectionKey.OP_READ;
+	}
+
 	/**
 	 * Get the client ID.
 	 * @return The client ID.
@@ -149,74 +271,433 @@ public class Client {
 	public void setPostBox(PostBox postBox) { mPostBox = postBox; }
 
 	/**
-	 * Run this client.  Fetches all incoming messages from the connected client
-	 * and inserts them into the postbox.  Runs until all messages have been
-	 * retrieved.
+	 * Set the maximum time that output sent by a client's owning thread can be
+	 * held back so that it is written along with later output.  With a delay
+	 * of 0, output is held back until the end of the current pass of the
+	 * thread loop only.
+	 * @param delay The maximum delay in milliseconds.
+	 */
+	public static void setFlushDelay(long delay) { mFlushDelay = Math.max(0, delay); }
+
+	/**
+	 * Get the maximum time that output can be held back.
+	 * @return The maximum delay in milliseconds.
 	 */
-	public void run() {
+	public static long getFlushDelay() { return mFlushDelay; }
 
-		// Read all incoming messages and store them in the postbox
-		String msg = null;
+	/**
+	 * Set the maximum number of messages that can wait to be written to a
+	 * client.  Once a client's queue is full, its oldest position updates are
+	 * dropped to make room; if it stays full for longer than the overflow
+	 * timeout, the client is disconnected.
+	 * @param maxOutbound The maximum number of waiting messages.
+	 */
+	public static void setMaxOutbound(int maxOutbound) { mMaxOutbound = Math.max(1, maxOutbound); }
 
-		while ((msg = getMessage()) != null) {
-			mPostBox.addMessage(msg);
+	/**
+	 * Get the maximum number of messages that can wait to be written to a
+	 * client.
+	 * @return The maximum number of waiting messages.
+	 */
+	public static int getMaxOutbound() { return mMaxOutbound; }
+
+	/**
+	 * Get the number of messages dropped from all clients' outbound queues.
+	 * @return The number of dropped messages.
+	 */
+	public static long getTotalDroppedCount() { return mTotalDroppedCount.get(); }
+
+	/**
+	 * Get the number of messages waiting to be written to the client.
+	 * @return The depth of the outbound queue.
+	 */
+	public synchronized int getOutboundDepth() { return mControlOutbound.size() + mOutbound.size(); }
+
+	/**
+	 * Get the number of messages dropped from the client's outbound queue
+	 * because the client could not keep up.
+	 * @return The number of dropped messages.
+	 */
+	public synchronized long getDroppedCount() { return mDroppedCount; }
+
+	/**
+	 * Check if the client has output that is being held back.
+	 * @return True if the client is waiting to be flushed by its thread.
+	 */
+	public synchronized boolean isFlushPending() { return mFlushPending; }
+
+	/**
+	 * Get the time by which held back output must be written.
+	 * @return The deadline in milliseconds.
+	 */
+	public synchronized long getFlushDeadline() { return mFlushDeadline; }
+
+	/**
+	 * Schedule a liveness check on the timer wheel.
+	 * @param delay Time in milliseconds until the check.
+	 */
+	private synchronized void scheduleAliveCheck(long delay) {
+		if (!mChannel.isOpen()) return;
+
+		mAliveTimeout = TimerWheel.getTimerWheel().schedule(new Runnable() {
+			public void run() {
+				checkAlive();
+			}
+		}, delay);
+	}
+
+	/**
+	 * Schedule the next ping on the timer wheel.
+	 */
+	private synchronized void schedulePing() {
+		if (!mChannel.isOpen()) return;
+
+		mPingTimeout = TimerWheel.getTimerWheel().schedule(new Runnable() {
+			public void run() {
+				ping();
+			}
+		}, PING_TIME);
+	}
 
-			Debug.print("Message: received: " + msg);
+	/**
+	 * Read all available data from the client's channel and insert every
+	 * complete message into the postbox.  Should be called when the channel
+	 * is reported as readable.  Stops reading if the postbox fills up; the
+	 * remaining data is read once the postbox has been emptied.
+	 */
+	public synchronized void read() {
+
+		try {
+			int count;
+
+			// Deliver messages held back whilst the postbox was full
+			if (!extractMessages()) return;
+
+			while ((count = mChannel.read(mReadBuffer)) > 0) {
+				if (!extractMessages()) return;
+
+				// Message longer than the buffer; make room for the rest
+				if (!mReadBuffer.hasRemaining()) {
+					mReadBuffer = grow(mReadBuffer, mReadBuffer.capacity());
+				}
+			}
+
+			if (count < 0) {
+
+				// Client closed the connection
+				Debug.print("Client disconnected: " + mId);
+				logout();
+			}
+		} catch (IOException e) {
+			System.out.println("Error reading from client");
+			logout();
+		}
+	}
+
+	/**
+	 * Switch the client's channel to blocking mode and start a thread that
+	 * reads from it.  Used instead of registering the channel with a selector
+	 * when every client has a thread of its own.
+	 * @throws IOException Thrown if the channel cannot be made blocking.
+	 */
+	public void startReader() throws IOException {
+		mChannel.configureBlocking(true);
+
+		VirtualThreads.start(new Runnable() {
+			public void run() {
+				readBlocking();
+			}
+		});
+	}
+
+	/**
+	 * Read from the client's channel until the client disconnects, inserting
+	 * every complete message into the postbox.  Blocks whilst there is
+	 * nothing to read or the postbox is full.  The client is not locked whilst
+	 * blocked, so other threads can still send to it.
+	 */
+	private void readBlocking() {
+
+		try {
+			while (!mIsDead) {
+				boolean delivered;
+
+				synchronized (this) {
+					delivered = extractMessages();
+				}
+
+				if (!delivered) {
+
+					// Wait for the group to make room in the postbox
+					LockSupport.parkNanos(FULL_POSTBOX_WAIT);
+					continue;
+				}
+
+				// Message longer than the buffer; make room for the rest
+				if (!mReadBuffer.hasRemaining()) {
+					mReadBuffer = grow(mReadBuffer, mReadBuffer.capacity());
+				}
+
+				if (mChannel.read(mReadBuffer) < 0) {
+
+					// Client closed the connection
+					Debug.print("Client disconnected: " + mId);
+					logout();
+				}
+			}
+		} catch (IOException e) {
+			if (!mIsDead) {
+				System.out.println("Error reading from client");
+				logout();
+			}
+		}
+	}
+
+	/**
+	 * Remove all complete messages from the read buffer and store them in the
+	 * postbox.  Incomplete messages remain in the buffer, as do all messages
+	 * that do not fit in the postbox.
+	 * @return True if all complete messages were stored; false if the postbox
+	 * is full.
+	 * @throws IOException Thrown if the client sends a malformed message.
+	 */
+	private boolean extractMessages() throws IOException {
+		mReadBuffer.flip();
+
+		try {
+			while (true) {
+				int start = mReadBuffer.position();
+
+				Message msg = decodeMessage();
+
+				if (msg == null) return true;
+
+				if (!mPostBox.offer(msg)) {
+
+					// Leave the message in the buffer to be decoded again
+					mReadBuffer.position(start);
+					return false;
+				}
+
+				mLastMessageTime = System.currentTimeMillis();
+
+				// The rest of the client's output uses the protocol it asks for
+				if ((mReadProtocol == Protocol.VERSION_TEXT) && (msg.getTo() == ADDRESS_SERVER) &&
+						(msg.getType() == MESSAGE_HANDSHAKE)) {
+					mReadProtocol = negotiateProtocol(msg.getData());
+				}
+
+				if (Debug.isEnabled()) Debug.print("Message: received: " + msg);
+			}
+		} finally {
+			mReadBuffer.compact();
+		}
+	}
+
+	/**
+	 * Decode the next complete message from the read buffer using the
+	 * client's current protocol.  Text lines without a valid header are
+	 * discarded.
+	 * @return The message, or null if there are no complete messages.
+	 * @throws IOException Thrown if the client sends a malformed frame.
+	 */
+	private Message decodeMessage() throws IOException {
+
+		while (true) {
+			if (mReadProtocol >= Protocol.VERSION_BINARY) {
+				return Protocol.decodeFrame(mReadBuffer);
+			}
+
+			// Locate the end of the next line
+			int start = mReadBuffer.position();
+			int end = start;
+
+			while ((end < mReadBuffer.limit()) && (mReadBuffer.get(end) != Protocol.DELIMITER)) {
+				end++;
+			}
+
+			if (end == mReadBuffer.limit()) return null;
+
+			mReadBuffer.position(end + 1);
+
+			// Strip carriage returns sent by Windows clients
+			if ((end > start) && (mReadBuffer.get(end - 1) == '\r')) end--;
+
+			Message msg = Protocol.decodeLine(mReadBuffer.array(), start, end - start);
+
+			if (msg != null) return msg;
+		}
+	}
+
+	/**
+	 * Work out the protocol version to use given the version requested by the
+	 * client.
+	 * @param data The version requested by the client.
+	 * @return The agreed protocol version.
+	 */
+	private static int negotiateProtocol(String data) {
+		try {
+			return Math.max(Protocol.VERSION_TEXT, Math.min(Protocol.VERSION, Integer.parseInt(data)));
+		} catch (NumberFormatException e) {
+			return Protocol.VERSION_TEXT;
+		}
+	}
+
+	/**
+	 * Write as much pending output as the channel will accept.  Should be
+	 * called when the channel is reported as writable.  Messages from the
+	 * server are written ahead of messages relayed from other clients, but
+	 * some of every write is kept for relayed messages whilst any are
+	 * waiting.  A message that has been partly written is always finished
+	 * first, and a server message queued in several buffers is never split
+	 * by relayed messages.
+	 */
+	public synchronized void flush() {
+
+		mFlushPending = false;
+
+		try {
+			while (!mControlOutbound.isEmpty() || !mOutbound.isEmpty()) {
+
+				// Gather queued messages into a single write
+				int count = 0;
+				ByteBuffer head = mOutbound.peek();
+
+				if ((head != null) && (head.position() > 0)) mGather[count++] = head;
+
+				int controlLimit = (mOutbound.size() > count ? MAX_GATHER - GAMEPLAY_GATHER : MAX_GATHER);
+				int controlStart = count;
+				int frameEnd = count;
+				Iterator<Boolean> frameEnds = mControlFrameEnds.iterator();
+
+				for (ByteBuffer buffer : mControlOutbound) {
+					if (count == controlLimit) break;
+
+					mGather[count++] = buffer;
+
+					if (frameEnds.next()) frameEnd = count;
+				}
+
+				// Stop the control messages at the end of a whole message
+				if (frameEnd > controlStart) {
+					Arrays.fill(mGather, frameEnd, count, null);
+					count = frameEnd;
+				}
+
+				for (ByteBuffer buffer : mOutbound) {
+					if (count == MAX_GATHER) break;
+
+					if (buffer != mGather[0]) mGather[count++] = buffer;
+				}
+
+				mChannel.write(mGather, 0, count);
+				Arrays.fill(mGather, 0, count, null);
+
+				// Discard messages that have been written completely
+				int written = 0;
+
+				while (!mControlOutbound.isEmpty() && !mControlOutbound.peek().hasRemaining()) {
+					mControlOutbound.poll();
+					if (mControlFrameEnds.poll()) mControlMessages--;
+					written++;
+				}
+
+				while (!mOutbound.isEmpty() && !mOutbound.peek().hasRemaining()) {
+					mOutbound.poll();
+					mOutboundMessages.poll();
+					written++;
+				}
+
+				// Channel cannot accept any more for now
+				if (written < count) break;
+			}
+		} catch (IOException e) {
+			System.out.println("Error writing to client");
+			clearOutbound();
+			logout();
+			return;
+		}
+
+		// Client has caught up
+		if (mOutbound.size() < mMaxOutbound) mOverflowStart = 0;
+
+		// Only listen for writability whilst there is something to write
+		if ((mKey != null) && mKey.isValid()) {
+			int ops = getInterestOps();
+
+			if (ops != mKey.interestOps()) {
+				mKey.interestOps(ops);
+
+				// Ensure a blocked selector notices the change
+				mKey.selector().wakeup();
+			}
 		}
-		
-		checkAlive();
-		ping();
+	}
+
+	/**
+	 * Create a copy of the supplied buffer with additional capacity.  The
+	 * buffer must be in write mode.
+	 * @param buffer The buffer to grow.
+	 * @param extra The minimum number of additional bytes required.
+	 * @return The new buffer.
+	 */
+	private static ByteBuffer grow(ByteBuffer buffer, int extra) {
+		ByteBuffer grown = ByteBuffer.allocate(Math.max(buffer.capacity() * 2, buffer.position() + extra));
+
+		buffer.flip();
+		grown.put(buffer);
+
+		return grown;
 	}
 	
 	/**
-	 * Check if the client is still alive by pinging it.  If no response is
-	 * received within the timeout period, keep pinging until the maximum number
-	 * of attemps has been reached.  After that period, declare the client dead.
+	 * Check if the client is still alive.  Run by the timer wheel when the
+	 * liveness timeout expires.  Receiving a message does not reschedule the
+	 * timeout; instead, if a message has arrived since the check was
+	 * scheduled, the check is deferred until the timeout period has elapsed
+	 * from that message.  If not, the client is declared dead and the thread
+	 * that owns it is woken so that it can be removed.
 	 */
 	private void checkAlive() {
 
 		if (!mIsDead) {
 
-			mLastMessageTime++;
-		
-			// Timed out?
-			if (mLastMessageTime > DEAD_CLIENT_TIMEOUT) {
-
-				// Client not responding; declare it dead
-				mIsDead = true;
-				close();
+			long elapsed = System.currentTimeMillis() - mLastMessageTime;
 
-				Debug.print("Client is dead!");
+			// Heard from the client since the check was scheduled?
+			if (elapsed < DEAD_CLIENT_TIMEOUT) {
+				scheduleAliveCheck(DEAD_CLIENT_TIMEOUT - elapsed);
+				return;
 			}
+
+			// Client not responding; declare it dead
+			mIsDead = true;
+			close();
+
+			PostBox postBox = mPostBox;
+			if (postBox != null) postBox.wakeOwner();
+
+			Debug.print("Client is dead!");
 		}
 	}
 
 	/**
-	 * Send a ping to the client if the timeout has occurred.
+	 * Send a ping to the client and schedule the next one.  Run by the timer
+	 * wheel.
 	 */
 	private void ping() {
 		if (!mIsDead) {
 
-			// Increase ping timer
-			mPingTime++;
-
-			// Timed out?
-			if (mPingTime >= PING_TIME) {
-
-				// Send a ping
-				sendMessage(ADDRESS_SERVER, MESSAGE_PING, "");
-				mPingTime = 0;
+			// Send a ping
+			sendMessage(ADDRESS_SERVER, MESSAGE_PING, "");
+			schedulePing();
 
-				Debug.print("Ping! " + mId);
-			}
+			Debug.print("Ping! " + mId);
 		}
 	}
 	
 	/**
 	 * Send a message to the client.
-	 * Message format: header:data
-	 * Header format: from,to,messageID
-	 * Data format: Method specific
 	 * From/to: 0 for server, -1 for all clients, >0 for specific client
 	 * @param from Message sender.
 	 * @param messageType Type of the message.
@@ -224,53 +705,190 @@ public class Client {
 	 * @return True if the message sent OK.
 	 */
 	private boolean sendMessage(int from, int messageType, String data) {
-		
-		StringBuilder msg = new StringBuilder();
-		
-		// Header
-		msg.append(from);
-		msg.append(",");
-		msg.append(mId);
-		msg.append(",");
-		msg.append(messageType);
-		msg.append(":");
-		
-		// Data
-		msg.append(data);
-		
-		mToClient.println(msg);
-
-		return true;
+		return sendMessage(new Message(from, mId, messageType, data));
 	}
 	
 	/**
-	 * Send a pre-formatted message to the client.
+	 * Send a message to the client, encoded in the client's protocol.  The
+	 * encoded message is queued without copying, so the same message can be
+	 * queued for many clients.  Messages sent by the thread that owns the
+	 * client are held back and written together when the thread finishes its
+	 * current pass, or when the flush delay expires; messages sent by other
+	 * threads are written immediately.  Output that the channel cannot accept
+	 * is written when the channel becomes writable.
 	 * @param message The message to send.
 	 * @return True if the message sent OK.
 	 */
-	public boolean sendMessage(String message) {		
-		mToClient.println(message);
+	public synchronized boolean sendMessage(Message message) {
+
+		if (!mChannel.isOpen()) return false;
+
+		ByteBuffer encoded = message.getEncoded(mWriteProtocol);
+
+		if (encoded == null) return false;
+
+		if (message.getFrom() == ADDRESS_SERVER) {
+
+			// Server messages are never dropped, so a client that lets them
+			// pile up is cut off
+			if (mControlMessages >= mMaxOutbound) {
+				System.out.println("Client " + mId + " control queue overflowed; disconnecting");
+				logout();
+				return false;
+			}
+
+			mControlOutbound.add(encoded);
+			mControlFrameEnds.add(Boolean.TRUE);
+			mControlMessages++;
+		} else {
+			if ((mOutbound.size() >= mMaxOutbound) && !makeRoom(message)) return false;
+
+			mOutbound.add(encoded);
+			mOutboundMessages.add(message);
+		}
+
+		scheduleFlush();
 
 		return true;
 	}
-	
+
 	/**
-	 * Get a message from the client.
-	 * @return The message.
+	 * Send a server response whose data has already been encoded.  Only the
+	 * header is created for the client; the shared payload is queued after it
+	 * without copying.
+	 * @param payload The encoded payload to send.
+	 * @return True if the message sent OK.
 	 */
-	public synchronized String getMessage() {
-		String msg = null;
-		
-		try {
-			if (mFromClient.ready()) {
-				msg = mFromClient.readLine();
-				mLastMessageTime = 0;
+	public synchronized boolean sendPayload(EncodedPayload payload) {
+
+		if (!mChannel.isOpen()) return false;
+
+		ByteBuffer body = payload.getEncoded(mWriteProtocol);
+
+		if (body == null) return false;
+
+		if (mControlMessages >= mMaxOutbound) {
+			System.out.println("Client " + mId + " control queue overflowed; disconnecting");
+			logout();
+			return false;
+		}
+
+		// The header and the payload are written as one message
+		mControlOutbound.add(Protocol.encodeHeader(ADDRESS_SERVER, mId, payload.getType(), mWriteProtocol,
+				body.remaining()));
+		mControlFrameEnds.add(Boolean.FALSE);
+		mControlOutbound.add(body);
+		mControlFrameEnds.add(Boolean.TRUE);
+		mControlMessages++;
+
+		scheduleFlush();
+
+		return true;
+	}
+
+	/**
+	 * Arrange for queued output to be written.  Output queued by the thread
+	 * that owns the client is held back until the end of its pass; output
+	 * queued by any other thread is written immediately.
+	 */
+	private void scheduleFlush() {
+		if (mFlushPending) return;
+
+		PostBox postBox = mPostBox;
+
+		if ((postBox != null) && postBox.deferFlush(this)) {
+			mFlushPending = true;
+			mFlushDeadline = System.currentTimeMillis() + mFlushDelay;
+		} else {
+			flush();
+		}
+	}
+
+	/**
+	 * Discard all output that has not been written.
+	 */
+	private void clearOutbound() {
+		mControlOutbound.clear();
+		mControlFrameEnds.clear();
+		mControlMessages = 0;
+		mOutbound.clear();
+		mOutboundMessages.clear();
+	}
+
+	/**
+	 * Make room in the full queue of relayed messages for a message.  The oldest position
+	 * update that has not started to be written is dropped.  If there is none
+	 * to drop, a new position update is itself dropped, whilst other messages
+	 * are queued regardless up to twice the normal limit.  A client whose
+	 * queue stays full for too long, or reaches the hard limit, is
+	 * disconnected, so that it cannot hold up the rest of its group.
+	 * @param message The message to make room for.
+	 * @return True if the message should be queued.
+	 */
+	private boolean makeRoom(Message message) {
+		long now = System.currentTimeMillis();
+
+		if (mOverflowStart == 0) {
+			mOverflowStart = now;
+		} else if (now - mOverflowStart > OVERFLOW_TIMEOUT) {
+			System.out.println("Client " + mId + " cannot keep up; disconnecting");
+			logout();
+			return false;
+		}
+
+		if (dropOldestPositionUpdate()) return true;
+
+		if (message.isPositionUpdate()) {
+			mDroppedCount++;
+			mTotalDroppedCount.incrementAndGet();
+			return false;
+		}
+
+		if (mOutbound.size() >= mMaxOutbound * 2) {
+			System.out.println("Client " + mId + " outbound queue overflowed; disconnecting");
+			logout();
+			return false;
+		}
+
+		return true;
+	}
+
+	/**
+	 * Remove the oldest position update from the queue of relayed messages.  The message
+	 * at the head of the queue is skipped if part of it has been written.
+	 * @return True if a position update was removed.
+	 */
+	private boolean dropOldestPositionUpdate() {
+		Iterator<ByteBuffer> buffers = mOutbound.iterator();
+		Iterator<Message> messages = mOutboundMessages.iterator();
+
+		while (buffers.hasNext()) {
+			ByteBuffer buffer = buffers.next();
+			Message message = messages.next();
+
+			if (message.isPositionUpdate() && (buffer.position() == 0)) {
+				buffers.remove();
+				messages.remove();
+
+				mDroppedCount++;
+				mTotalDroppedCount.incrementAndGet();
+
+				return true;
 			}
-		} catch (IOException e) {
-			System.out.println("Error reading from client");
 		}
 
-		return msg;
+		return false;
+	}
+
+	/**
+	 * Reply to a protocol negotiation request.  The reply is sent using the
+	 * old protocol; all subsequent messages use the agreed protocol.
+	 */
+	public synchronized void sendProtocolVersion() {
+		sendMessage(ADDRESS_SERVER, MESSAGE_HANDSHAKE, String.valueOf(mReadProtocol));
+		mWriteProtocol = mReadProtocol;
+
+		Debug.print("Message: protocol " + mWriteProtocol + " for client " + mId);
 	}
 	
 	/**
@@ -309,9 +927,11 @@ public class Client {
 	 */
 	public void sendPeerList(ClientList clientList) {
 
-		Debug.print("Message: sendGameSessionData: " + clientList.toMessageData());
+		EncodedPayload payload = clientList.getPeerListPayload();
 
-		sendMessage(ADDRESS_SERVER, MESSAGE_PEER_LIST, clientList.toMessageData());
+		Debug.print("Message: sendGameSessionData: " + payload.getData());
+
+		sendPayload(payload);
 	}
 	
 	/**
@@ -322,6 +942,10 @@ public class Client {
 		// Client has quit - close connection
 		close();
 		mIsDead = true;
+
+		// Let the group remove the client
+		PostBox postBox = mPostBox;
+		if (postBox != null) postBox.wakeOwner();
 	}
 
 	/**
@@ -355,9 +979,17 @@ public class Client {
 	 * @param username The username to authenticate.
 	 * @param password The password to authenticate.
 	 */
-	public void authenticate(String username, String password) {
+	public void authenticate(String username, final String password) {
+		whenDone(AsyncDatabase.getPlayer(username), playerData -> completeLogin(playerData, password));
+	}
 
-		PlayerData playerData = Database.getPlayer(username);
+	/**
+	 * Finish authenticating the client once its player data has been
+	 * retrieved.
+	 * @param playerData The player data, or null if no such player exists.
+	 * @param password The password to authenticate.
+	 */
+	private void completeLogin(PlayerData playerData, String password) {
 
 		if (playerData == null) {
 
@@ -370,7 +1002,7 @@ public class Client {
 
 				// Player valid
 				mIsAuthenticated = true;
-				mUsername = playerData.getUsername();
+				setUsername(playerData.getUsername());
 				mPlayerId = playerData.getId();
 				sendLoginData(playerData);
 			} else {
@@ -381,6 +1013,19 @@ public class Client {
 		}
 	}
 
+	/**
+	 * Change the client's username, and have its group rebuild the peer list
+	 * that holds the old name.
+	 * @param username The new username.
+	 */
+	private void setUsername(String username) {
+		mUsername = username;
+
+		PostBox postBox = mPostBox;
+
+		if (postBox != null) postBox.clientRenamed(this);
+	}
+
 	/**
 	 * Send player data to the client for login.
 	 * Data transmitted as id,username,password,joineddate
@@ -410,9 +1055,9 @@ public class Client {
 	 * Send the list of available game types to the client.
 	 */
 	public void sendGameList() {
-		GameList gameList = Database.getGameList();
 
-		sendMessage(ADDRESS_SERVER, MESSAGE_GAME_LIST, gameList.toString());
+		// Served from memory, so there is no need to wait for the database
+		sendPayload(PayloadCache.getGameList());
 	}
 
 	/**
@@ -422,14 +1067,20 @@ public class Client {
 	 * @param password The password to authenticate.
 	 */
 	public void register(String username, String password) {
+		whenDone(AsyncDatabase.register(username, password), playerData -> completeRegistration(playerData));
+	}
 
-		PlayerData playerData = Database.register(username, password);
+	/**
+	 * Finish registering the client once the player has been created.
+	 * @param playerData The new player data, or null if registration failed.
+	 */
+	private void completeRegistration(PlayerData playerData) {
 
 		if (playerData != null) {
 			
 			// Player valid
 			mIsAuthenticated = true;
-			mUsername = playerData.getUsername();
+			setUsername(playerData.getUsername());
 			mPlayerId = playerData.getId();
 			
 			sendMessage(ADDRESS_SERVER, MESSAGE_REGISTER, playerData.toString());
@@ -446,23 +1097,46 @@ public class Client {
 	 */
 	public void sendPlayerStats() {
 
+		// Served from memory, so there is no need to wait for the database
 		PlayerStats playerStats = Database.getPlayerStats(mUsername);
 
-		if (playerStats != null) {
-			sendMessage(ADDRESS_SERVER, MESSAGE_PLAYER_STATS, playerStats.toString());
-		} else {
+		if (playerStats == null) {
 			sendMessage(ADDRESS_SERVER, MESSAGE_PLAYER_STATS, "");
+			return;
 		}
+
+		// The database publishes new stats whenever they change
+		EncodedPayload payload = mPlayerStatsPayload;
+
+		if ((payload == null) || (payload.getSource() != playerStats)) {
+			payload = new EncodedPayload(MESSAGE_PLAYER_STATS, playerStats.toString(), playerStats);
+			mPlayerStatsPayload = payload;
+		}
+
+		sendPayload(payload);
 	}
-        
+
 	/**
-	 * Send the list of available game types to the client.
+	 * Send the player's rating and position among all rated players to the
+	 * client.
+	 */
+	public void sendPlayerRank() {
+
+		// Ranked in memory, so there is no need to wait for the database
+		PlayerRank playerRank = Database.getPlayerRank(mUsername);
+
+		sendMessage(ADDRESS_SERVER, MESSAGE_PLAYER_RANK, (playerRank != null ? playerRank.toString() : ""));
+	}
+
+	/**
+	 * Send the high scores of a game to the client.
 	 * @param gameId ID of the game to send high scores for.
+	 * @param window One of the HighScoreData window constants.
 	 */
-	public void sendHighScores(int gameId) {
-		HighScoreData highScores = Database.getHighScores(gameId);
+	public void sendHighScores(int gameId, int window) {
 
-		sendMessage(ADDRESS_SERVER, MESSAGE_HIGH_SCORES, highScores.toString());
+		// Served from memory, so there is no need to wait for the database
+		sendPayload(PayloadCache.getHighScores(gameId, window));
 	}
 	
 	/**
@@ -470,9 +1144,25 @@ public class Client {
 	 * @param gameId ID of the game.
 	 */
 	public void sendGameStats(int gameId) {
-		GameStats stats = Database.getGameStats(gameId);
 
-		sendMessage(ADDRESS_SERVER, MESSAGE_GAME_STATS, stats.toString());
+		// Counted in memory, so there is no need to wait for the database
+		sendPayload(PayloadCache.getGameStats(gameId));
+	}
+
+	/**
+	 * Run an action with the result of a database call once the call
+	 * completes.  The action runs on the thread hosting the client's group,
+	 * so the thread is never held up waiting for the database.  If the call
+	 * fails, the failure is logged and the action is given null.
+	 * @param call The database call.
+	 * @param action The action to run with the result.
+	 */
+	<T> void whenDone(CompletableFuture<T> call, final Consumer<T> action) {
+		call.whenCompleteAsync((result, error) -> {
+			if (error != null) System.out.println("Database call failed for client " + mId + ": " + error);
+
+			action.accept(error == null ? result : null);
+		}, mGroupExecutor);
 	}
 	
 	/**
@@ -0,0 +1,276 @@
+package pacserver;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * A group of clients that share a postbox, such as the clients in a lobby or
+ * in a game session.  Groups are hosted by a GroupHost, normally a PacThread,
+ * which services the clients' channels and processes the group whenever it
+ * has work to do.  A group is only ever processed by one host at a time, but
+ * may be handed from one host to another.
+ */
+public class ClientGroup {
+
+	// Members
+	private ClientList mClientList;
+	private ClientList mDeadClientList;
+	private PostBox mPostBox;
+	private ConcurrentLinkedQueue<Client> mPendingClients;
+	private ConcurrentLinkedQueue<Runnable> mTasks;
+	private ArrayList<Message> mMessageBatch;
+	private volatile GroupHost mHost;
+	private AtomicBoolean mScheduled;
+
+	/**
+	 * Constructor.
+	 */
+	public ClientGroup() {
+		mPostBox = new PostBox(this);
+		mClientList = new ClientList();
+		mDeadClientList = new ClientList();
+		mPendingClients = new ConcurrentLinkedQueue<Client>();
+		mTasks = new ConcurrentLinkedQueue<Runnable>();
+		mMessageBatch = new ArrayList<Message>();
+		mHost = null;
+		mScheduled = new AtomicBoolean(false);
+	}
+
+	/**
+	 * Get the client list.
+	 * @return The client list.
+	 */
+	protected ClientList getClientList() { return mClientList; }
+
+	/**
+	 * Get the list of dead clients.
+	 * @return The list of dead clients.
+	 */
+	protected ClientList getDeadClientList() { return mDeadClientList; }
+
+	/**
+	 * Get the post box.
+	 * @return The post box.
+	 */
+	protected PostBox getPostBox() { return mPostBox; }
+
+	/**
+	 * Get the host of the group.
+	 * @return The host of the group, or null if the group is not hosted.
+	 */
+	public GroupHost getHost() { return mHost; }
+
+	/**
+	 * Set the host of the group.  Called by the host when it takes on or gives
+	 * up the group.  All clients are registered with the new host the next
+	 * time the group is processed.
+	 * @param host The host of the group, or null if the group is no longer
+	 * hosted.
+	 */
+	synchronized void setHost(GroupHost host) {
+		mHost = host;
+
+		// Any earlier schedule was with the previous host
+		mScheduled.set(false);
+
+		if (host == null) return;
+
+		for (int i = 0; i < mClientList.size(); ++i) {
+			mPendingClients.add(mClientList.get(i));
+		}
+
+		wakeup();
+	}
+
+	/**
+	 * Add an existing client to the group.
+	 * @param client The client to add to the group.
+	 * @return True if the client was added.
+	 */
+	public synchronized boolean addClient(Client client) {
+		client.setPostBox(mPostBox);
+		client.setResultList(null);
+		mClientList.add(client);
+
+		// Channel registration must happen on the host
+		mPendingClients.add(client);
+		wakeup();
+
+		return true;
+	}
+
+	/**
+	 * Remove a client from the client list.
+	 * @param client The client to remove.
+	 */
+	public void removeClient(Client client) {
+		mClientList.remove(client);
+		client.deregister();
+	}
+
+	/**
+	 * Get the number of clients in the group.
+	 * @return Number of clients in the group.
+	 */
+	public int getClientCount() { return mClientList.size(); }
+
+	/**
+	 * Ask the host to process the group.  The group is queued with the host
+	 * at most once until it is processed.
+	 */
+	public void wakeup() {
+		GroupHost host = mHost;
+
+		if ((host != null) && !mScheduled.get() && mScheduled.compareAndSet(false, true)) {
+			host.schedule(this);
+		}
+	}
+
+	/**
+	 * Run a task on the host the next time the group is processed.  Used to
+	 * hand the results of work done on other threads, such as database calls,
+	 * back to the group.  May be called by any thread.
+	 * @param task The task to run.
+	 */
+	public void execute(Runnable task) {
+		mTasks.add(task);
+		wakeup();
+	}
+
+	/**
+	 * Defer flushing a client's output until the host finishes its current
+	 * pass.
+	 * @param client The client to flush.
+	 * @return True if the flush was deferred; false if the caller is not the
+	 * host.
+	 */
+	public boolean deferFlush(Client client) {
+		GroupHost host = mHost;
+
+		return (host != null) && host.deferFlush(client);
+	}
+
+	/**
+	 * Note that a client in the group has changed its username, so that the
+	 * group's peer list is rebuilt.
+	 * @param client The client that was renamed.
+	 */
+	public void clientRenamed(Client client) {
+		mClientList.invalidatePeerList();
+	}
+
+	/**
+	 * Process the group.  Registers new clients with the host, runs waiting
+	 * tasks, processes the messages waiting in the postbox and removes dead
+	 * clients.  Called by the
+	 * host whenever the group has been woken.
+	 */
+	void process() {
+		mScheduled.set(false);
+
+		registerPendingClients();
+
+		runTasks();
+
+		// Process the messages waiting in the postbox.  Stale position updates
+		// are dropped so that a backlog clears quickly.  A message that cannot
+		// be handled is dropped without affecting the rest of the batch
+		mPostBox.drainConflated(mMessageBatch, mPostBox.getCapacity());
+
+		for (int i = 0; i < mMessageBatch.size(); ++i) {
+			try {
+				MessageHandler.processMessage(mMessageBatch.get(i), mClientList);
+			} catch (RuntimeException e) {
+				System.out.println("Error processing message: " + e);
+			}
+		}
+
+		mMessageBatch.clear();
+
+		removeDeadClients();
+
+		update();
+
+		// Messages arrived faster than they could be processed
+		if ((mPostBox.size() > 0) || !mTasks.isEmpty()) wakeup();
+	}
+
+	/**
+	 * Register all newly-added clients with the host.  Clients that have left
+	 * the group since being added are skipped.
+	 */
+	private void registerPendingClients() {
+		Client client;
+
+		while ((client = mPendingClients.poll()) != null) {
+			if (mClientList.getClientByID(client.getId()) == client) {
+				mHost.register(client);
+			}
+		}
+	}
+
+	/**
+	 * Run every task that was waiting when the group was processed.  Tasks
+	 * added whilst running are left for the next time.
+	 */
+	private void runTasks() {
+		for (int i = mTasks.size(); i > 0; --i) {
+			Runnable task = mTasks.poll();
+
+			if (task == null) break;
+
+			try {
+				task.run();
+			} catch (RuntimeException e) {
+				System.out.println("Error running task: " + e);
+			}
+		}
+	}
+
+	/**
+	 * Perform any work specific to the group.  Called each time the group is
+	 * processed, after messages have been processed.
+	 */
+	protected void update() { }
+
+	/**
+	 * Check if the group has finished and should no longer be hosted.
+	 * @return True if the group has finished.
+	 */
+	public boolean isFinished() { return false; }
+
+	/**
+	 * Called by the host once the group has finished and has been removed.
+	 */
+	protected void finished() { }
+
+	/**
+	 * Get the relative cost of hosting the group, used to balance groups
+	 * between threads.
+	 * @return The cost of hosting the group.
+	 */
+	public int getLoad() { return 1; }
+
+	/**
+	 * Remove dead clients from the client list.
+	 */
+	protected void removeDeadClients() {
+
+		// Remove all dead clients
+		int i = 0;
+		while (i < getClientCount()) {
+
+			Client client = getClientList().get(i);
+
+			if (client.isDead()) {
+
+				// Client dead, so move to the dead client list
+				getClientList().remove(client);
+				--i;
+			}
+
+			++i;
+		}
+	}
+}
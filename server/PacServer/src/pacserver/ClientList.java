@@ -4,18 +4,25 @@ import java.util.*;
 
 /**
  * List of clients.  Wrapper around the ArrayList class offering synchronized
- * access.
+ * access.  Clients are also indexed by ID, so looking up a client does not
+ * depend on the number of clients in the list.
  */
 public class ClientList {
 
 	// Members
 	private ArrayList<Client> mClientList;
+	private IntMap<Client> mIndex;
+	private Client[] mSnapshot;
+	private EncodedPayload mPeerList;
 
 	/**
 	 * Constructor.
 	 */
 	public ClientList() {
 		mClientList = new ArrayList<Client>();
+		mIndex = new IntMap<Client>();
+		mSnapshot = null;
+		mPeerList = null;
 	}
 
 	/**
@@ -34,6 +41,9 @@ public class ClientList {
 	 */
 	public synchronized void add(Client client) {
 		mClientList.add(client);
+		mIndex.put(client.getId(), client);
+		mSnapshot = null;
+		mPeerList = null;
 	}
 
 	/**
@@ -41,7 +51,11 @@ public class ClientList {
 	 * @param client The client to remove.
 	 */
 	public synchronized void remove(Client client) {
-		mClientList.remove(client);
+		if (mClientList.remove(client)) {
+			if (mIndex.get(client.getId()) == client) mIndex.remove(client.getId());
+			mSnapshot = null;
+			mPeerList = null;
+		}
 	}
 
 	/**
@@ -50,11 +64,20 @@ public class ClientList {
 	 * @return The client.
 	 */
 	public synchronized Client getClientByID(int id) {
-		for (Client client : mClientList) {
-			if (client.getId() == id) return client;
-		}
+		return mIndex.get(id);
+	}
 
-		return null;
+	/**
+	 * Get the clients in the list as an array.  The array is shared between
+	 * callers until the list next changes, so iterating over it repeatedly
+	 * costs nothing and does not hold the list's lock.  The array must not be
+	 * modified.
+	 * @return The clients in the list.
+	 */
+	public synchronized Client[] toArray() {
+		if (mSnapshot == null) mSnapshot = mClientList.toArray(new Client[mClientList.size()]);
+
+		return mSnapshot;
 	}
 
 	/**
@@ -87,4 +110,23 @@ public class ClientList {
 		
 		return msg.toString();
 	}
+
+	/**
+	 * Discard the encoded peer list so that it is rebuilt the next time it is
+	 * needed.  Called when a client in the list changes its username.
+	 */
+	public synchronized void invalidatePeerList() {
+		mPeerList = null;
+	}
+
+	/**
+	 * Get the client list encoded as a peer list message.  The payload is
+	 * shared by every client it is sent to until the list next changes.
+	 * @return The encoded peer list.
+	 */
+	public synchronized EncodedPayload getPeerListPayload() {
+		if (mPeerList == null) mPeerList = new EncodedPayload(Client.MESSAGE_PEER_LIST, toMessageData(), this);
+
+		return mPeerList;
+	}
 }
@@ -13,6 +13,13 @@ public class Debug {
 	 */
 	private Debug() { }
 
+	/**
+	 * Check if debug messages are printed.  Callers on busy paths should check
+	 * this before building a message.
+	 * @return True if debug messages are printed.
+	 */
+	public static boolean isEnabled() { return ENABLED; }
+
 	/**
 	 * Print a message.
 	 * @param msg The message to print.
@@ -0,0 +1,75 @@
+package pacserver;
+
+import java.nio.*;
+
+/**
+ * The data of a server response, encoded once in every protocol so that it
+ * can be sent to any number of clients without being encoded again.  Only
+ * the small header, which holds the recipient's address, is created per
+ * client.  A payload is immutable; when the data changes a new payload is
+ * created to replace it.
+ */
+public class EncodedPayload {
+
+	// Members
+	private int mType;
+	private String mData;
+	private Object mSource;
+	private ByteBuffer[] mEncoded = new ByteBuffer[Protocol.VERSION + 1];
+
+	/**
+	 * Constructor.
+	 * @param type Type of the message that carries the payload.
+	 * @param data Data of the message.
+	 * @param source The object the data was created from, used to tell
+	 * whether the payload is still current.
+	 */
+	public EncodedPayload(int type, String data, Object source) {
+		mType = type;
+		mData = data;
+		mSource = source;
+
+		for (int version = Protocol.VERSION_TEXT; version <= Protocol.VERSION; ++version) {
+			byte[] body = Protocol.encodeBody(type, data, version);
+
+			if (body == null) continue;
+
+			// Direct so that the channel can write it without copying
+			ByteBuffer encoded = ByteBuffer.allocateDirect(body.length);
+			encoded.put(body);
+			encoded.flip();
+
+			mEncoded[version] = encoded.asReadOnlyBuffer();
+		}
+	}
+
+	/**
+	 * Get the type of the message that carries the payload.
+	 * @return The type of the message.
+	 */
+	public int getType() { return mType; }
+
+	/**
+	 * Get the data of the message.
+	 * @return The data of the message.
+	 */
+	public String getData() { return mData; }
+
+	/**
+	 * Get the object the data was created from.
+	 * @return The source of the data.
+	 */
+	public Object getSource() { return mSource; }
+
+	/**
+	 * Get the payload encoded in the specified protocol.  Each caller receives
+	 * its own read-only view with an independent position.
+	 * @param version The protocol version.
+	 * @return The encoded payload, or null if it cannot be encoded.
+	 */
+	public ByteBuffer getEncoded(int version) {
+		ByteBuffer encoded = mEncoded[version];
+
+		return (encoded == null ? null : encoded.duplicate());
+	}
+}
@@ -0,0 +1,158 @@
+package pacserver;
+
+/**
+ * Thread that hosts game sessions.  A fixed pool of game loops is created at
+ * startup and every session is multiplexed onto one of them, so the number of
+ * threads no longer grows with the number of games being played.
+ *
+ * New sessions are given to the least-loaded loop and stay there, keeping
+ * their clients' state warm in that core's cache.  If the loads drift apart
+ * as sessions end, a lightly-loaded loop asks the busiest loop for work; the
+ * busiest loop hands over a session at the end of its next pass, so sessions
+ * are only ever moved by the loop that hosts them.
+ */
+public class GameLoop extends PacThread {
+
+	// Constants
+
+	/** Default number of game loops */
+	public static final int DEFAULT_THREAD_COUNT = Runtime.getRuntime().availableProcessors();
+
+	/** Time in milliseconds between checks for uneven load */
+	public static final long BALANCE_INTERVAL = 1000;
+
+	// Members
+	private static GameLoop[] mGameLoops;
+	private volatile GameLoop mThief;
+	private long mNextBalanceTime;
+
+	/**
+	 * Initialise the game loops.
+	 * @param threadCount The number of game loops to create.
+	 */
+	public static void init(int threadCount) {
+		mGameLoops = new GameLoop[Math.max(1, threadCount)];
+
+		for (int i = 0; i < mGameLoops.length; ++i) {
+			mGameLoops[i] = new GameLoop(i);
+			mGameLoops[i].start();
+		}
+	}
+
+	/**
+	 * Hand a new session to the least-loaded game loop.
+	 * @param session The session to host.
+	 */
+	public static void assign(GameSession session) {
+		GameLoop loop = mGameLoops[0];
+
+		for (int i = 1; i < mGameLoops.length; ++i) {
+			if (mGameLoops[i].getLoad() < loop.getLoad()) loop = mGameLoops[i];
+		}
+
+		loop.addGroup(session);
+	}
+
+	/**
+	 * Get the number of game loops.
+	 * @return The number of game loops.
+	 */
+	public static int getThreadCount() { return mGameLoops.length; }
+
+	/**
+	 * Interrupt all game loops.
+	 */
+	public static void interruptAll() {
+		if (mGameLoops == null) return;
+
+		for (int i = 0; i < mGameLoops.length; ++i) {
+			mGameLoops[i].interrupt();
+		}
+	}
+
+	/**
+	 * Constructor.
+	 * @param index The index of the loop among the game loops.
+	 */
+	private GameLoop(int index) {
+		super("GameLoop-" + index);
+
+		mThief = null;
+		mNextBalanceTime = System.currentTimeMillis() + BALANCE_INTERVAL;
+
+		Debug.print("Game: Loop created");
+	}
+
+	/**
+	 * Ask the loop to hand one of its sessions to another loop.  Ignored if
+	 * the loop has no session that would even out the load.
+	 * @param thief The loop that wants a session.
+	 */
+	private void requestSession(GameLoop thief) {
+		mThief = thief;
+		wakeup();
+	}
+
+	/**
+	 * Wake periodically to check for uneven load.
+	 * @return Time in milliseconds until the next check.
+	 */
+	@Override
+	protected long getIdleWait() {
+		return Math.max(0, mNextBalanceTime - System.currentTimeMillis());
+	}
+
+	/**
+	 * Hand over a session if another loop has asked for one, and ask the
+	 * busiest loop for a session if this loop is lightly loaded.
+	 */
+	@Override
+	protected void idle() {
+
+		GameLoop thief = mThief;
+
+		if (thief != null) {
+			mThief = null;
+			donateSession(thief);
+		}
+
+		long now = System.currentTimeMillis();
+
+		if (now < mNextBalanceTime) return;
+
+		mNextBalanceTime = now + BALANCE_INTERVAL;
+
+		// Find the busiest loop
+		GameLoop busiest = this;
+
+		for (int i = 0; i < mGameLoops.length; ++i) {
+			if (mGameLoops[i].getLoad() > busiest.getLoad()) busiest = mGameLoops[i];
+		}
+
+		if (busiest != this) busiest.requestSession(this);
+	}
+
+	/**
+	 * Hand a session to another loop.  Only a session small enough to reduce
+	 * the difference between the two loads is handed over, so sessions cannot
+	 * bounce back and forth between loops.
+	 * @param thief The loop to hand the session to.
+	 */
+	private void donateSession(GameLoop thief) {
+
+		int limit = (getLoad() - thief.getLoad()) / 2;
+
+		for (int i = getGroupCount() - 1; i >= 0; --i) {
+			ClientGroup group = getGroup(i);
+
+			if ((group.getLoad() <= limit) && !group.isFinished()) {
+
+				Debug.print("Game: Moving session to " + thief.getName());
+
+				removeGroup(group);
+				thief.addGroup(group);
+				return;
+			}
+		}
+	}
+}
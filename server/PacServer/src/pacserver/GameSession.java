@@ -4,80 +4,136 @@ import database.*;
 import java.util.*;
 
 /**
- * Class for handling connections to clients in a separate thread.
+ * A single game session and the clients playing in it.  Sessions do not have
+ * threads of their own; each is hosted by one of the game loops, which
+ * services the session's clients alongside those of the loop's other
+ * sessions.
  */
-public class GameThread extends PacThread {
+public class GameSession extends ClientGroup {
+
+	// Constants
+
+	/** Time in milliseconds a session waits for players before it is abandoned */
+	public static final long SESSION_WAIT_TIMEOUT = 300000;
 
 	// Members
 	private GameData mGameData;
 	private int mSessionId;
 	private long mStartTime;
-	private boolean mRunning;
+	private volatile boolean mRunning;
 	private boolean mIsFull;
+	private TimerWheel.Timeout mWaitTimeout;
+	private volatile boolean mWaitExpired;
+	private SessionIndex.Entry mIndexEntry;
 	
 	/**
 	 * Constructor.
 	 * @param gameData Data describing the type of game to be created.
 	 * @param sessionId ID of this game session.
 	 */
-	public GameThread(GameData gameData, int sessionId) {
-		super("GameThread");
-		
+	public GameSession(GameData gameData, int sessionId) {
+		super();
+
 		mGameData = gameData;
 		mSessionId = sessionId;
 		mStartTime = System.currentTimeMillis();
 		mRunning = true;
 		mIsFull = false;
+		mWaitExpired = false;
+		mIndexEntry = null;
+
+		// Abandon the session if it does not fill up in time
+		mWaitTimeout = TimerWheel.getTimerWheel().schedule(new Runnable() {
+			public void run() {
+				mWaitExpired = true;
+				wakeup();
+			}
+		}, SESSION_WAIT_TIMEOUT);
 
-		Debug.print("Game: New thread created");
+		Debug.print("Game: New session created");
 	}
 
 	/**
-	 * Extend base run method to implement game over checking.
+	 * Implement game over checking.  Called each time the session is
+	 * processed.
 	 */
 	@Override
-	public void run() {
-
-		while (mRunning) {
+	protected void update() {
 
-			// Runs client code for all clients.
-			for (int i = 0; i < getClientCount(); ++i) {
-				getClientList().get(i).run();
-			}
+		// Check for expiry and game over scenarios
+		if (mWaitExpired) expireSession();
+		if (mRunning) handleGameOver();
+	}
 
-			// Process any pending messages
-			MessageHandler.processMessages(getPostBox(), getClientList());
+	/**
+	 * Check if the session has ended.
+	 * @return True if the session has ended.
+	 */
+	@Override
+	public boolean isFinished() { return !mRunning; }
 
-			removeDeadClients();
+	/**
+	 * Remove the session from the list of running sessions once it has ended.
+	 */
+	@Override
+	protected void finished() {
 
-			// Check for game over scenario
-			handleGameOver();
-		}
-		
 		Debug.print("Exiting game session");
 
-		LobbyThread.getLobbyThread().removeThread(this);
-
-		interrupt();
+		LobbyThread.removeSession(this);
 	}
 
 	/**
-	 * Add a new client to the thread and redirect its postbox.
-	 * @param client The client to add to this thread
+	 * Get the cost of hosting the session, which is taken to be the number of
+	 * players it is for.
+	 * @return The cost of hosting the session.
 	 */
 	@Override
-	public void addClient(Client client) {
+	public int getLoad() { return mGameData.getPlayers(); }
 
-		if (!mIsFull) {
-			super.addClient(client);
-			client.setPostBox(getPostBox());
+	/**
+	 * Add a new client to the session and redirect its postbox.  Fails if the
+	 * session is full or has ended.
+	 * @param client The client to add to this session
+	 * @return True if the client was added.
+	 */
+	@Override
+	public synchronized boolean addClient(Client client) {
 
-			// If we have enough clients, start the game
-			if (getClientCount() == mGameData.getPlayers()) {
-				mIsFull = true;
-				startGame();
-			}
+		if (mIsFull || !mRunning) return false;
+
+		super.addClient(client);
+
+		// If we have enough clients, start the game
+		if (getClientCount() == mGameData.getPlayers()) {
+			mIsFull = true;
+			mWaitTimeout.cancel();
+			LobbyThread.getOpenSessions().remove(this);
+			startGame();
+		}
+
+		return true;
+	}
+
+	/**
+	 * Abandon the session if it is still waiting for players.  Waiting clients
+	 * are sent an empty peer list and moved back to the lobby.
+	 */
+	private synchronized void expireSession() {
+
+		mWaitExpired = false;
+
+		if (mIsFull) return;
+
+		Debug.print("Game: Session expired waiting for players");
+
+		ClientList emptyList = new ClientList();
+
+		for (int i = 0; i < getClientCount(); ++i) {
+			getClientList().get(i).sendPeerList(emptyList);
 		}
+
+		endGame();
 	}
 
 	/**
@@ -93,16 +149,19 @@ public class GameThread extends PacThread {
 	 * Move clients back to the lobby and redirect them back to the lobby
 	 * postbox.
 	 */
-	private void endGame() {
+	private synchronized void endGame() {
 
 		Debug.print("Moving clients back to lobby");
 
+		mWaitTimeout.cancel();
+		LobbyThread.getOpenSessions().remove(this);
+
 		// Move clients back to lobby
 		while (getClientCount() > 0) {
 			Client client = getClientList().get(getClientCount() - 1);
 
 			removeClient(client);
-			LobbyThread.getLobbyThread().addClient(client);
+			LobbyThread.getLobbyThread(client.getId()).addClient(client);
 		}
 
 		mRunning = false;
@@ -146,8 +205,12 @@ public class GameThread extends PacThread {
 			// Append the list of clients that disconnected
 			appendDeadClients(resultList);
 
-			// Save the results
-			Database.saveGameResults(mGameData.getId(), mGameData.getPlayers(), mStartTime, duration, resultList);
+			// Queue the results to be written along with those of other finished
+			// games; the clients go back to the lobby without waiting
+			AsyncDatabase.saveGameResults(mGameData.getId(), resultList.getWinnerId(), mStartTime, duration, resultList)
+					.whenComplete((result, error) -> {
+						if (error != null) System.out.println("Error saving game results: " + error);
+					});
 
 			endGame();
 		}
@@ -252,11 +315,11 @@ public class GameThread extends PacThread {
 	}
 
 	/**
-	 * Check if this thread is waiting for players.
-	 * @return True if the thread is waiting for players
+	 * Check if this session is waiting for players.
+	 * @return True if the session is waiting for players
 	 */
 	public boolean isWaitingForPlayers() {
-		return (getClientCount() < mGameData.getPlayers());
+		return mRunning && (getClientCount() < mGameData.getPlayers());
 	}
 
 	/**
@@ -266,6 +329,20 @@ public class GameThread extends PacThread {
 	public int getGameId() {
 		return mGameData.getId();
 	}
+
+	/**
+	 * Get the session's entry in the index of open sessions.  Only used by
+	 * the index.
+	 * @return The entry, or null if the session is not in the index.
+	 */
+	SessionIndex.Entry getIndexEntry() { return mIndexEntry; }
+
+	/**
+	 * Set the session's entry in the index of open sessions.  Only used by
+	 * the index.
+	 * @param entry The entry, or null if the session has left the index.
+	 */
+	void setIndexEntry(SessionIndex.Entry entry) { mIndexEntry = entry; }
 	
 	/**
 	 * Remove dead clients from the client list and store them in the dead
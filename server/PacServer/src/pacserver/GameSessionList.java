@@ -0,0 +1,68 @@
+package pacserver;
+
+import java.util.*;
+
+/**
+ * List of game sessions.  Wrapper around the ArrayList class offering
+ * synchronized access.  Sessions are also indexed by session ID.
+ */
+public class GameSessionList {
+
+	// Members
+	private ArrayList<GameSession> mList;
+	private IntMap<GameSession> mIndex;
+
+	/**
+	 * Constructor.
+	 */
+	public GameSessionList() {
+		mList = new ArrayList<GameSession>();
+		mIndex = new IntMap<GameSession>();
+	}
+
+	/**
+	 * Get the session at the specified index.
+	 * @param i The index of the session to retrieve.
+	 * @return The session at the specified index.
+	 */
+	public synchronized GameSession get(int i) {
+		if (i < mList.size()) return mList.get(i);
+		return null;
+	}
+
+	/**
+	 * Add the supplied session to the list.
+	 * @param session Session to add to the list.
+	 */
+	public synchronized void add(GameSession session) {
+		mList.add(session);
+		mIndex.put(session.getSessionId(), session);
+	}
+
+	/**
+	 * Remove the specified session from the list.
+	 * @param session The session to remove.
+	 */
+	public synchronized void remove(GameSession session) {
+		if (mList.remove(session)) {
+			if (mIndex.get(session.getSessionId()) == session) mIndex.remove(session.getSessionId());
+		}
+	}
+
+	/**
+	 * Retrieve a session by its session ID.
+	 * @param id The session id of the session.
+	 * @return The session.
+	 */
+	public synchronized GameSession getGameSessionBySessionID(int id) {
+		return mIndex.get(id);
+	}
+
+	/**
+	 * Get the number of sessions in the list.
+	 * @return The number of sessions in the list.
+	 */
+	public synchronized int size() {
+		return mList.size();
+	}
+}
@@ -0,0 +1,30 @@
+package pacserver;
+
+/**
+ * Something that hosts groups of clients, processing each group whenever it
+ * is woken.  Implemented by the event loop threads, which host many groups
+ * each, and by group runners, which give a group a thread of its own.
+ */
+public interface GroupHost {
+
+	/**
+	 * Queue a group to be processed.  Called when the group is woken.
+	 * @param group The group to process.
+	 */
+	public void schedule(ClientGroup group);
+
+	/**
+	 * Prepare a newly-added client to be serviced by the host.  Must only be
+	 * called by the host itself.
+	 * @param client The client to register.
+	 */
+	public void register(Client client);
+
+	/**
+	 * Defer flushing a client's output until the host finishes processing.
+	 * Only output sent by the host itself can be deferred.
+	 * @param client The client to flush.
+	 * @return True if the flush was deferred.
+	 */
+	public boolean deferFlush(Client client);
+}
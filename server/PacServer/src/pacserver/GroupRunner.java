@@ -0,0 +1,113 @@
+package pacserver;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Hosts a single group on a thread of its own, as an alternative to the
+ * event loops.  The thread blocks until the group is woken and then
+ * processes it.  Used with clients that also have threads of their own and
+ * block reading from their channels, so no selectors are involved.  Threads
+ * are virtual where the runtime supports them, so blocking does not tie up a
+ * platform thread per client or per session.
+ */
+public class GroupRunner implements GroupHost, Runnable {
+
+	// Members
+	private static volatile boolean mEnabled = false;
+	private ClientGroup mGroup;
+	private Semaphore mWork;
+	private ArrayList<Client> mFlushList;
+	private volatile Thread mThread;
+
+	/**
+	 * Choose whether clients and groups run on threads of their own rather
+	 * than on the event loops.  Must be set before any clients connect.
+	 * @param enabled True to give every client and group a thread.
+	 */
+	public static void setEnabled(boolean enabled) { mEnabled = enabled; }
+
+	/**
+	 * Check if clients and groups run on threads of their own.
+	 * @return True if every client and group has a thread.
+	 */
+	public static boolean isEnabled() { return mEnabled; }
+
+	/**
+	 * Start hosting a group on a thread of its own.  The thread exits when the
+	 * group finishes.
+	 * @param group The group to host.
+	 */
+	public static void start(ClientGroup group) {
+		VirtualThreads.start(new GroupRunner(group));
+	}
+
+	/**
+	 * Constructor.
+	 * @param group The group to host.
+	 */
+	private GroupRunner(ClientGroup group) {
+		mGroup = group;
+		mWork = new Semaphore(0);
+		mFlushList = new ArrayList<Client>();
+		mThread = null;
+	}
+
+	/**
+	 * Process the group each time it is woken, until it finishes.
+	 */
+	public void run() {
+		mThread = Thread.currentThread();
+
+		mGroup.setHost(this);
+
+		while (true) {
+
+			// Wait until the group is woken
+			mWork.acquireUninterruptibly();
+			mWork.drainPermits();
+
+			mGroup.process();
+
+			// Write everything sent whilst processing
+			for (int i = 0; i < mFlushList.size(); ++i) {
+				mFlushList.get(i).flush();
+			}
+
+			mFlushList.clear();
+
+			if (mGroup.isFinished()) break;
+		}
+
+		mGroup.setHost(null);
+		mGroup.finished();
+	}
+
+	/**
+	 * Wake the thread to process the group.
+	 * @param group The group to process.
+	 */
+	public void schedule(ClientGroup group) {
+		mWork.release();
+	}
+
+	/**
+	 * Clients read from their channels on threads of their own, so there is
+	 * nothing to register.
+	 * @param client The client to register.
+	 */
+	public void register(Client client) { }
+
+	/**
+	 * Defer flushing a client's output until the group has been processed.
+	 * @param client The client to flush.
+	 * @return True if the flush was deferred.
+	 */
+	public boolean deferFlush(Client client) {
+		if (Thread.currentThread() != mThread) return false;
+
+		mFlushList.add(client);
+
+		return true;
+	}
+}
@@ -0,0 +1,183 @@
+package pacserver;
+
+/**
+ * Map from int keys to objects.  Uses open addressing with linear probing, so
+ * keys are stored unboxed and looking up a key touches one or two adjacent
+ * array slots rather than following a chain of entry objects.  Not thread
+ * safe.
+ * @param <V> The type of the values.
+ */
+public class IntMap<V> {
+
+	// Constants
+
+	/** Initial number of slots.  Must be a power of two. */
+	private static final int DEFAULT_CAPACITY = 16;
+
+	// Members
+	private int[] mKeys;
+	private Object[] mValues;
+	private int mMask;
+	private int mSize;
+
+	/**
+	 * Constructor.
+	 */
+	public IntMap() {
+		mKeys = new int[DEFAULT_CAPACITY];
+		mValues = new Object[DEFAULT_CAPACITY];
+		mMask = DEFAULT_CAPACITY - 1;
+		mSize = 0;
+	}
+
+	/**
+	 * Get the value stored against a key.
+	 * @param key The key.
+	 * @return The value, or null if the key is not in the map.
+	 */
+	@SuppressWarnings("unchecked")
+	public V get(int key) {
+		int i = findSlot(key);
+
+		return (V)mValues[i];
+	}
+
+	/**
+	 * Store a value against a key, replacing any existing value.
+	 * @param key The key.
+	 * @param value The value.  Must not be null.
+	 * @return The previous value, or null if the key was not in the map.
+	 */
+	@SuppressWarnings("unchecked")
+	public V put(int key, V value) {
+		if (value == null) throw new IllegalArgumentException("Value cannot be null");
+
+		int i = findSlot(key);
+		V previous = (V)mValues[i];
+
+		mKeys[i] = key;
+		mValues[i] = value;
+
+		if (previous == null) {
+
+			// Keep at least half of the slots free so that probes stay short
+			if (++mSize > (mMask + 1) / 2) resize((mMask + 1) * 2);
+		}
+
+		return previous;
+	}
+
+	/**
+	 * Remove a key from the map.
+	 * @param key The key.
+	 * @return The value that was stored against the key, or null if the key
+	 * was not in the map.
+	 */
+	@SuppressWarnings("unchecked")
+	public V remove(int key) {
+		int i = findSlot(key);
+		V previous = (V)mValues[i];
+
+		if (previous == null) return null;
+
+		mValues[i] = null;
+		mSize--;
+
+		// Move following entries back into the gap if the gap lies between
+		// their home slot and their current slot, so that no probe sequence
+		// is broken
+		int gap = i;
+		int j = (i + 1) & mMask;
+
+		while (mValues[j] != null) {
+			int home = hash(mKeys[j]) & mMask;
+
+			if (((j - home) & mMask) >= ((j - gap) & mMask)) {
+				mKeys[gap] = mKeys[j];
+				mValues[gap] = mValues[j];
+				mValues[j] = null;
+				gap = j;
+			}
+
+			j = (j + 1) & mMask;
+		}
+
+		return previous;
+	}
+
+	/**
+	 * Check if the map contains a key.
+	 * @param key The key.
+	 * @return True if the key is in the map.
+	 */
+	public boolean containsKey(int key) {
+		return mValues[findSlot(key)] != null;
+	}
+
+	/**
+	 * Get the number of keys in the map.
+	 * @return The number of keys in the map.
+	 */
+	public int size() { return mSize; }
+
+	/**
+	 * Remove all keys from the map.
+	 */
+	public void clear() {
+		for (int i = 0; i < mValues.length; ++i) {
+			mValues[i] = null;
+		}
+
+		mSize = 0;
+	}
+
+	/**
+	 * Find the slot that contains the key, or the empty slot where it would
+	 * be stored.
+	 * @param key The key.
+	 * @return The index of the slot.
+	 */
+	private int findSlot(int key) {
+		int i = hash(key) & mMask;
+
+		while ((mValues[i] != null) && (mKeys[i] != key)) {
+			i = (i + 1) & mMask;
+		}
+
+		return i;
+	}
+
+	/**
+	 * Rehash all entries into a larger table.
+	 * @param capacity The new number of slots.  Must be a power of two.
+	 */
+	private void resize(int capacity) {
+		int[] keys = mKeys;
+		Object[] values = mValues;
+
+		mKeys = new int[capacity];
+		mValues = new Object[capacity];
+		mMask = capacity - 1;
+
+		for (int i = 0; i < values.length; ++i) {
+			if (values[i] != null) {
+				int j = findSlot(keys[i]);
+
+				mKeys[j] = keys[i];
+				mValues[j] = values[i];
+			}
+		}
+	}
+
+	/**
+	 * Spread a key over the table.  Sequential ids would otherwise fill
+	 * adjacent slots and form long probe runs.
+	 * @param key The key.
+	 * @return The hash of the key.
+	 */
+	private static int hash(int key) {
+		int h = key * 0x9E3779B9;
+
+		return h ^ (h >>> 16);
+	}
+}
@@ -1,94 +1,174 @@
 package pacserver;
 
 import java.io.IOException;
-import java.net.*;
+import java.nio.channels.*;
+import java.util.concurrent.atomic.*;
 import database.*;
 
 /**
- * Class for handling connections to clients in a separate thread.  This thread
- * contains all clients not currently engaged in a game.
+ * Class for handling connections to clients in a separate thread.  These
+ * threads contain all clients not currently engaged in a game.  The lobby is
+ * partitioned over several threads so that lobby work can use every core;
+ * each client belongs to the lobby thread chosen by its ID, and returns to
+ * the same thread when its game ends.  Client and session IDs, the list of
+ * running games and the index of sessions waiting for players are shared by
+ * all lobby threads, so matchmaking sees every session.  Game sessions are
+ * handed to the game loops rather than being given threads of their own.
  */
 public class LobbyThread extends PacThread {
 
+	// Constants
+
+	/** Default number of lobby threads */
+	public static final int DEFAULT_THREAD_COUNT = Runtime.getRuntime().availableProcessors();
+
 	// Members
-	private int mNextClientId;
-	private int mNextGameSessionId;
-	private GameThreadList mRunningGameList;
+	private static LobbyThread[] mLobbyThreads;
+	private static AtomicInteger mNextClientId = new AtomicInteger(1);
+	private static AtomicInteger mNextGameSessionId = new AtomicInteger(1);
+	private static GameSessionList mRunningGameList = new GameSessionList();
+	private static SessionIndex mOpenSessions = new SessionIndex();
+	private ClientGroup mLobby;
+
+	/**
+	 * Initialise the lobby threads.
+	 * @param threadCount The number of lobby threads to create.
+	 */
+	public static void init(int threadCount) {
+		mLobbyThreads = new LobbyThread[Math.max(1, threadCount)];
 
-	private static LobbyThread mLobbyThread;
+		for (int i = 0; i < mLobbyThreads.length; ++i) {
+			LobbyThread thread = new LobbyThread(i);
+			mLobbyThreads[i] = thread;
+
+			if (GroupRunner.isEnabled()) {
+
+				// The lobby gets a thread of its own; the loop is not used
+				GroupRunner.start(thread.mLobby);
+			} else {
+				thread.addGroup(thread.mLobby);
+				thread.start();
+			}
+		}
+	}
+
+	/**
+	 * Get the lobby thread responsible for a client.
+	 * @param clientId The ID of the client.
+	 * @return The lobby thread responsible for the client.
+	 */
+	public static LobbyThread getLobbyThread(int clientId) {
+		return mLobbyThreads[(clientId & Integer.MAX_VALUE) % mLobbyThreads.length];
+	}
+
+	/**
+	 * Get the number of lobby threads.
+	 * @return The number of lobby threads.
+	 */
+	public static int getThreadCount() { return mLobbyThreads.length; }
 
 	/**
-	 * Initialise the lobby thread.
+	 * Allocate the ID for a newly-connected client.
+	 * @return The new client ID.
 	 */
-	public static void init() {
-		mLobbyThread = new LobbyThread();
-		mLobbyThread.start();
+	public static int nextClientId() {
+		return mNextClientId.getAndIncrement();
 	}
 
 	/**
-	 * Get a pointer to the lobby thread singleton.
-	 * @return A pointer to the lobby thread singleton.
+	 * Get the index of sessions that are waiting for players.
+	 * @return The index of sessions that are waiting for players.
 	 */
-	public static LobbyThread getLobbyThread() {
-		return mLobbyThread;
+	public static SessionIndex getOpenSessions() { return mOpenSessions; }
+
+	/**
+	 * Interrupt all lobby threads.
+	 */
+	public static void interruptAll() {
+		for (int i = 0; i < mLobbyThreads.length; ++i) {
+			mLobbyThreads[i].interrupt();
+		}
 	}
 
 	/**
-	 * Constructor.  Singleton pattern.
+	 * Constructor.
+	 * @param index The index of the thread among the lobby threads.
 	 */
-	private LobbyThread() {
-		super("ServerThread");
-		mRunningGameList = new GameThreadList();
-		mNextClientId = 1;
-		mNextGameSessionId = 1;
+	private LobbyThread(int index) {
+		super("ServerThread-" + index);
+
+		mLobby = new ClientGroup();
 
 		Debug.print("Lobby: Thread created");
 	}
 
 	/**
 	 * Add a new client to the thread.
-	 * @param socket The socket to communicate to the client with.
+	 * @param id The ID of the new client.
+	 * @param channel The channel to communicate to the client with.
 	 */
-	public void addClient(Socket socket) {
+	public void addClient(int id, SocketChannel channel) {
 
 		try {
-			socket.setTcpNoDelay(true);
-			Client client = new Client(mNextClientId, socket, getPostBox());
-			getClientList().add(client);
+			// Output is batched per pass by the thread loop, so Nagle's
+			// algorithm would only add latency
+			channel.socket().setTcpNoDelay(true);
+			Client client = new Client(id, channel, mLobby.getPostBox());
+			addClient(client);
+
+			if (GroupRunner.isEnabled()) client.startReader();
 
 			client.handshake();
 
-			// Remember that we have a new client
-			mNextClientId++;
-			
 		} catch (IOException e) {
 			System.err.println("Error adding client.");
 		}
 	}
 
 	/**
-	 * Creates a new game thread and moves the client into it.
+	 * Add an existing client to the lobby.
+	 * @param client The client to add.
+	 * @return True if the client was added.
+	 */
+	public boolean addClient(Client client) {
+		return mLobby.addClient(client);
+	}
+
+	/**
+	 * Remove a client from the lobby.
+	 * @param client The client to remove.
+	 */
+	public void removeClient(Client client) {
+		mLobby.removeClient(client);
+	}
+
+	/**
+	 * Creates a new game session and moves the client into it.
 	 * @param gameData Data describing the game to be created.
 	 * @param client Client that is creating the game.
 	 */
-	public GameThread createGame(GameData gameData, Client client) {
-
-		Debug.print("Lobby: Creating new game thread");
+	public GameSession createGame(GameData gameData, Client client) {
 
-		// Create a new game thread
-		GameThread thread = new GameThread(gameData, mNextGameSessionId);
-		mRunningGameList.add(thread);
+		Debug.print("Lobby: Creating new game session");
 
-		mNextGameSessionId++;
+		// Create a new game session
+		GameSession session = new GameSession(gameData, mNextGameSessionId.getAndIncrement());
+		mRunningGameList.add(session);
+		mOpenSessions.add(session);
 
-		// Move client to new thread
+		// Move client to new session.  The client must be added before the
+		// session is hosted, as an empty session is treated as over
 		removeClient(client);
-		thread.addClient(client);
+		session.addClient(client);
 
 		// Start the game running
-		thread.start();
+		if (GroupRunner.isEnabled()) {
+			GroupRunner.start(session);
+		} else {
+			GameLoop.assign(session);
+		}
 
-		return thread;
+		return session;
 	}
 
 	/**
@@ -96,39 +176,38 @@ public class LobbyThread extends PacThread {
 	 * @param gameData The data of the game that the client wants to join.
 	 * @param client The client that wants to join.
 	 */
-	public GameThread joinGame(GameData gameData, Client client) {
+	public GameSession joinGame(GameData gameData, Client client) {
 
 		// Attempt to find an existing session of this game that is waiting for
 		// players
-		for (int i = 0; i < mRunningGameList.size(); ++i) {
+		GameSession session;
 
-			GameThread thread = mRunningGameList.get(i);
+		while ((session = mOpenSessions.get(gameData.getId())) != null) {
 
-			if (thread.getGameId() == gameData.getId()) {
-				if (thread.isWaitingForPlayers()) {
+			// Move client to the session
+			removeClient(client);
 
-					// Move client to new thread
-					removeClient(client);
-					thread.addClient(client);
+			if (session.addClient(client)) return session;
 
-					return thread;
-				}
-			}
+			// Session filled or expired in the meantime
+			addClient(client);
+			mOpenSessions.remove(session);
 		}
 
-		// No existing thread, so create new
+		// No existing session, so create new
 		return createGame(gameData, client);
 	}
 
 	/**
-	 * Remove a game thread from the list of running game threads.
-	 * @param thread The thread to remove.
+	 * Remove a game session from the list of running game sessions.
+	 * @param session The session to remove.
 	 */
-	public synchronized void removeThread(GameThread thread) {
+	public static void removeSession(GameSession session) {
 
-		Debug.print("Removing game thread from list");
+		Debug.print("Removing game session from list");
 
-		mRunningGameList.remove(thread);
+		mRunningGameList.remove(session);
+		mOpenSessions.remove(session);
 	}
 }
 
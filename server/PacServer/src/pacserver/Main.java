@@ -2,6 +2,8 @@ package pacserver;
 
 import java.net.*;
 import java.io.*;
+import java.nio.channels.*;
+import database.*;
 
 /**
  * Main program.
@@ -16,6 +18,12 @@ public class Main {
 	/** Version of the server. */
 	final public static String VERSION = "1.00";
 
+	/** Thread mode in which clients and sessions are multiplexed on event loops */
+	final public static String THREAD_MODE_LOOP = "loop";
+
+	/** Thread mode in which every client and session has a thread of its own */
+	final public static String THREAD_MODE_VIRTUAL = "virtual";
+
 	/**
 	 * Main program loop - waits for and handles connecting clients.
 	 * @param args the command line arguments.
@@ -40,13 +48,55 @@ public class Main {
 	 */
 	public static void runLobby() {
 
-		ServerSocket serverSocket = null;
+		ServerSocketChannel serverSocket = null;
+
+		// Start the timer wheel used for heartbeats and timeouts
+		TimerWheel.init();
 
-		// Create lobby thread that will wait for client connections
-		LobbyThread.init();
+		// Maximum time that client output can be held back for batching
+		Client.setFlushDelay(Long.getLong("pacserver.flushDelay", Client.DEFAULT_FLUSH_DELAY));
 
+		// Maximum number of messages that can wait to be written to a client
+		Client.setMaxOutbound(Integer.getInteger("pacserver.maxOutbound", Client.DEFAULT_MAX_OUTBOUND));
+
+		// Open the database, replaying its log
 		try {
-			serverSocket = new ServerSocket(PORT_NUMBER);
+			Database.open(new File(System.getProperty("pacserver.dataDir", Database.DEFAULT_DIRECTORY)),
+					Integer.getInteger("pacserver.dbSegmentSize", LogStore.DEFAULT_SEGMENT_SIZE));
+		} catch (IOException e) {
+			System.err.println("Could not open database: " + e);
+			System.exit(-1);
+		}
+
+		// Create the threads that run database calls off the event loops and
+		// write game results in groups
+		AsyncDatabase.init(Integer.getInteger("pacserver.dbThreads", AsyncDatabase.DEFAULT_THREAD_COUNT),
+				Integer.getInteger("pacserver.dbQueue", AsyncDatabase.DEFAULT_QUEUE_SIZE),
+				Long.getLong("pacserver.dbCommitDelay", ResultWriter.DEFAULT_COMMIT_DELAY));
+
+		// Delay added to every database call to simulate a slow backend
+		AsyncDatabase.setInjectedLatency(Long.getLong("pacserver.dbLatency", 0));
+
+		// Choose how clients and game sessions are run
+		String threadMode = System.getProperty("pacserver.threadMode", THREAD_MODE_LOOP);
+
+		if (threadMode.equals(THREAD_MODE_VIRTUAL)) {
+			GroupRunner.setEnabled(true);
+
+			System.out.println("Running clients and sessions on " +
+					(VirtualThreads.isAvailable() ? "virtual" : "pooled") + " threads.");
+		} else {
+
+			// Create the game loops that will host game sessions
+			GameLoop.init(Integer.getInteger("pacserver.gameThreads", GameLoop.DEFAULT_THREAD_COUNT));
+		}
+
+		// Create lobby threads that will wait for client connections
+		LobbyThread.init(Integer.getInteger("pacserver.lobbyThreads", LobbyThread.DEFAULT_THREAD_COUNT));
+
+		try {
+			serverSocket = ServerSocketChannel.open();
+			serverSocket.socket().bind(new InetSocketAddress(PORT_NUMBER));
 		} catch (IOException e) {
 			System.err.println("Could not listen on port " + PORT_NUMBER + ": " + e);
 			System.exit(-1);
@@ -56,7 +106,10 @@ public class Main {
 			while (true) {
 
 				// Wait for client connections and add them to the lobby
-				LobbyThread.getLobbyThread().addClient(serverSocket.accept());
+				SocketChannel channel = serverSocket.accept();
+				int clientId = LobbyThread.nextClientId();
+
+				LobbyThread.getLobbyThread(clientId).addClient(clientId, channel);
 			}
 		} catch (Exception e) {
 			// Ignore exception - just continue closing program
@@ -69,8 +122,13 @@ public class Main {
 				// Ignore exception
 			}
 
-			// Stop the lobby thread
-			LobbyThread.getLobbyThread().interrupt();
+			// Stop the lobby threads and game loops
+			LobbyThread.interruptAll();
+			GameLoop.interruptAll();
+
+			// Write any queued game results before closing the database
+			AsyncDatabase.shutdown();
+			Database.close();
 		}
 	}
 
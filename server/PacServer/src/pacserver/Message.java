@@ -0,0 +1,147 @@
+package pacserver;
+
+import java.nio.*;
+
+/**
+ * A message passed between clients and the server.  Messages are decoded from
+ * the wire format used by the sending client and re-encoded in the format used
+ * by each recipient.
+ * Text format: header:data
+ * Header format: from,to,messageID
+ * Data format: Method specific
+ * From/to: 0 for server, -1 for all clients, >0 for specific client
+ *
+ * A message is encoded at most once per protocol, no matter how many clients
+ * it is sent to.  Messages relayed between clients keep the encoding they
+ * arrived in, which is forwarded untouched to clients using the same
+ * protocol; their data is only decoded if it is needed.
+ */
+public class Message {
+
+	// Members
+	private int mFrom;
+	private int mTo;
+	private int mType;
+	private String mData;
+	private int mRawVersion;
+	private ByteBuffer[] mEncoded = new ByteBuffer[Protocol.VERSION + 1];
+
+	/**
+	 * Constructor.
+	 * @param from Source id.
+	 * @param to Destination id.
+	 * @param type Type of the message.
+	 * @param data Data of the message.
+	 */
+	public Message(int from, int to, int type, String data) {
+		mFrom = from;
+		mTo = to;
+		mType = type;
+		mData = data;
+		mRawVersion = -1;
+	}
+
+	/**
+	 * Constructor for a message that is to be relayed as it was received.
+	 * @param from Source id.
+	 * @param to Destination id.
+	 * @param type Type of the message.
+	 * @param version The protocol that the message was received in.
+	 * @param encoded The message as received, including any delimiter.
+	 */
+	public Message(int from, int to, int type, int version, ByteBuffer encoded) {
+		mFrom = from;
+		mTo = to;
+		mType = type;
+		mData = null;
+		mRawVersion = version;
+		mEncoded[version] = encoded.asReadOnlyBuffer();
+	}
+
+	/**
+	 * Get the address that the message is being sent from.
+	 * @return The id of the sender.
+	 */
+	public int getFrom() { return mFrom; }
+
+	/**
+	 * Get the address that the message is sent to.
+	 * @return The id of the recipient.
+	 */
+	public int getTo() { return mTo; }
+
+	/**
+	 * Get the type of the message.
+	 * @return The type of the message.
+	 */
+	public int getType() { return mType; }
+
+	/**
+	 * Check if the message is a position update sent to other clients.  A
+	 * position update is superseded by the next update from the same sender,
+	 * so may be dropped if a later one is waiting.
+	 * @return True if the message is a position update.
+	 */
+	public boolean isPositionUpdate() {
+		return (mType == Protocol.MESSAGE_SPRITE_DATA) && (mTo != Client.ADDRESS_SERVER);
+	}
+
+	/**
+	 * Get the message data.  The data of a relayed message is decoded the
+	 * first time it is requested.
+	 * @return The message data.
+	 */
+	public String getData() {
+		if (mData == null) {
+			mData = Protocol.decodeData(mEncoded[mRawVersion].duplicate(), mRawVersion, mFrom, mTo, mType);
+		}
+
+		return mData;
+	}
+
+	/**
+	 * Get the message encoded in the specified protocol.  The encoding is
+	 * created the first time it is requested and shared by every subsequent
+	 * caller, so broadcasting a message costs one encoding regardless of the
+	 * number of recipients.  Each caller receives its own read-only view of
+	 * the encoding with an independent position, which can be queued for
+	 * writing without copying.
+	 * @param version The protocol version.
+	 * @return The encoded message, or null if it cannot be encoded.
+	 */
+	public ByteBuffer getEncoded(int version) {
+		if (mEncoded[version] == null) {
+			byte[] bytes = Protocol.encode(this, version);
+
+			if (bytes == null) return null;
+
+			// Direct so that the channel can write it without copying
+			ByteBuffer encoded = ByteBuffer.allocateDirect(bytes.length);
+			encoded.put(bytes);
+			encoded.flip();
+
+			mEncoded[version] = encoded.asReadOnlyBuffer();
+		}
+
+		return mEncoded[version].duplicate();
+	}
+
+	/**
+	 * Get the text representation of the message.
+	 * @return The text representation of the message.
+	 */
+	@Override
+	public String toString() {
+		StringBuilder msg = new StringBuilder();
+
+		msg.append(mFrom);
+		msg.append(",");
+		msg.append(mTo);
+		msg.append(",");
+		msg.append(mType);
+		msg.append(":");
+		msg.append(getData());
+
+		return msg.toString();
+	}
+}
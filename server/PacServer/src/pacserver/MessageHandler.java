@@ -7,144 +7,142 @@ import database.*;
  */
 public class MessageHandler {
 	
-	/**
-	 * Process all messages.
-	 * @param postBox Post box to fetch messages from.
-	 * @param clientList Client list to deliver to.
-	 */
-	public static void processMessages(PostBox postBox, ClientList clientList) {
-		String msg = null;
-
-		while (postBox.size() > 0) {
-			msg = postBox.getMessage();
-			processMessage(msg, clientList);
-		}
-	}
-
 	/**
 	 * Process a message.
 	 * @param msg Message to send.
 	 * @param clientList Client list to deliver to.
 	 */
-	private static void processMessage(String msg, ClientList clientList) {
-
-		// Break message into header and its subcomponents
-		String messageSplit[] = msg.split(":");
-		String header[] = messageSplit[0].split(",");
-
-		// Check if we have a valid message header
-		if (header.length == 3) {
-
-			// Got a valid message; work out where to deliver it
-			int from = Integer.valueOf(header[0]);
-			int to = Integer.valueOf(header[1]);
-			int messageType = Integer.valueOf(header[2]);
+	public static void processMessage(Message msg, ClientList clientList) {
 
-			// Deliver message to correct location
-			switch (to) {
-				case Client.ADDRESS_ALL_CLIENTS:
+		// Work out where to deliver the message
+		int from = msg.getFrom();
+		int to = msg.getTo();
+		int messageType = msg.getType();
 
-					Debug.print("Message: to all clients: " + msg.toString());
+		// Deliver message to correct location
+		switch (to) {
+			case Client.ADDRESS_ALL_CLIENTS:
 
-					// Deliver message to all clients except the originator
-					for (int i = 0; i < clientList.size(); ++i) {
-						if (clientList.get(i).getId() != from) {
-							clientList.get(i).sendMessage(msg);
-						}
-					}
-					break;
-				case Client.ADDRESS_SERVER:
-
-					// Message is intended for the server
-					
-					// Get the client from the client list
-					Client client = clientList.getClientByID(from);
-
-					switch (messageType) {
-						case Client.MESSAGE_LOGOUT:
-
-							// Client has quit
-							client.logout();
-							break;
-
-						case Client.MESSAGE_PEER_LIST:
-
-							// Client wants the peer list
-							client.sendPeerList(clientList);
-							break;
-
-						case Client.MESSAGE_PLAYER_DATA:
-
-							// Client wants player data
-							sendPlayerData(client, messageSplit[1]);
-							break;
-							
-						case Client.MESSAGE_LOGIN:
-							
-							// Client wants to authenticate
-							authenticate(client, messageSplit[1]);
-							break;
-
-						case Client.MESSAGE_JOIN_GAME:
-
-							// Client wants to join a game
-							joinGame(client, messageSplit[1]);
-							break;
-
-						case Client.MESSAGE_GAME_LIST:
-
-							// Client wants the list of game types
-							client.sendGameList();
-							break;
-
-						case Client.MESSAGE_REGISTER:
-
-							// New player wants to register.
-							register(client, messageSplit[1]);
-							break;
-
-						case Client.MESSAGE_PLAYER_STATS:
-
-							// Client wants their stats.
-							client.sendPlayerStats();
-							break;
-
-						case Client.MESSAGE_GAME_END:
-
-							// Client reports a game has ended
-							endGame(client, clientList, messageSplit[1]);
-							break;
-
-						case Client.MESSAGE_HIGH_SCORES:
-
-							// Client wants high scores for a game.
-							sendHighScores(client, messageSplit[1]);
-							break;
-							
-						case Client.MESSAGE_PING:
-							
-							// Client sending a ping
-							Debug.print("Pong! " + from);
-							break;
-							
-						case Client.MESSAGE_GAME_STATS:
-							
-							// Client wants game stats
-							sendGameStats(client, messageSplit[1]);
-							break;
-							
-					}
-					break;
-				default:
+				if (Debug.isEnabled()) Debug.print("Message: to all clients: " + msg.toString());
 
-					// Message is intended for a specific client
-					Client toClient = clientList.getClientByID(to);
+				// Deliver message to all clients except the originator.  The
+				// message is encoded once per protocol and the encoding is
+				// shared between all recipients.
+				Client[] clients = clientList.toArray();
 
-					if (toClient != null) {
-						toClient.sendMessage(msg);
+				for (int i = 0; i < clients.length; ++i) {
+					if (clients[i].getId() != from) {
+						clients[i].sendMessage(msg);
 					}
-					break;
-			}
+				}
+				break;
+			case Client.ADDRESS_SERVER:
+
+				// Message is intended for the server
+				
+				// Get the client from the client list
+				Client client = clientList.getClientByID(from);
+				String data = msg.getData();
+
+				// Sender has already left the group
+				if (client == null) break;
+
+				switch (messageType) {
+					case Client.MESSAGE_HANDSHAKE:
+
+						// Client wants to change protocol
+						client.sendProtocolVersion();
+						break;
+
+					case Client.MESSAGE_LOGOUT:
+
+						// Client has quit
+						client.logout();
+						break;
+
+					case Client.MESSAGE_PEER_LIST:
+
+						// Client wants the peer list
+						client.sendPeerList(clientList);
+						break;
+
+					case Client.MESSAGE_PLAYER_DATA:
+
+						// Client wants player data
+						sendPlayerData(client, data);
+						break;
+						
+					case Client.MESSAGE_LOGIN:
+						
+						// Client wants to authenticate
+						authenticate(client, data);
+						break;
+
+					case Client.MESSAGE_JOIN_GAME:
+
+						// Client wants to join a game
+						joinGame(client, data);
+						break;
+
+					case Client.MESSAGE_GAME_LIST:
+
+						// Client wants the list of game types
+						client.sendGameList();
+						break;
+
+					case Client.MESSAGE_REGISTER:
+
+						// New player wants to register.
+						register(client, data);
+						break;
+
+					case Client.MESSAGE_PLAYER_STATS:
+
+						// Client wants their stats.
+						client.sendPlayerStats();
+						break;
+
+					case Client.MESSAGE_PLAYER_RANK:
+
+						// Client wants their rating and position.
+						client.sendPlayerRank();
+						break;
+
+					case Client.MESSAGE_GAME_END:
+
+						// Client reports a game has ended
+						endGame(client, clientList, data);
+						break;
+
+					case Client.MESSAGE_HIGH_SCORES:
+
+						// Client wants high scores for a game.
+						sendHighScores(client, data);
+						break;
+						
+					case Client.MESSAGE_PING:
+						
+						// Client sending a ping
+						Debug.print("Pong! " + from);
+						break;
+						
+					case Client.MESSAGE_GAME_STATS:
+						
+						// Client wants game stats
+						sendGameStats(client, data);
+						break;
+						
+				}
+				break;
+			default:
+
+				// Message is intended for a specific client
+				Client toClient = clientList.getClientByID(to);
+
+				if (toClient != null) {
+					toClient.sendMessage(msg);
+				}
+				break;
 		}
 	}
 	
@@ -166,11 +164,8 @@ public class MessageHandler {
 	 * @param client The client to send the data to.
 	 * @param data The data associated with an authentication message.
 	 */
-	private static void sendPlayerData(Client client, String data) {
-
-		PlayerData playerData = Database.getPlayer(data);
-
-		client.sendPlayerData(playerData);
+	private static void sendPlayerData(final Client client, String data) {
+		client.whenDone(AsyncDatabase.getPlayer(data), playerData -> client.sendPlayerData(playerData));
 	}
 
 	/**
@@ -179,18 +174,15 @@ public class MessageHandler {
 	 * @param data The data associated with the create game message.
 	 */
 	private static void joinGame(Client client, String data) {
-		int gameId = Integer.parseInt(data);
+		GameData gameData = Database.getGameData(Integer.parseInt(data));
 
-		// Find the game data
-		GameList gameList = Database.getGameList();
+		if (gameData == null) return;
 
-		GameData gameData = gameList.getGameDataByID(gameId);
-
-		// Create a new thread and move the client into it
-		GameThread thread = LobbyThread.getLobbyThread().joinGame(gameData, client);
+		// Find or create a session and move the client into it
+		GameSession session = LobbyThread.getLobbyThread(client.getId()).joinGame(gameData, client);
 
 		// Send the session ID back to the client
-		client.sendGameSessionId(thread.getSessionId());
+		client.sendGameSessionId(session.getSessionId());
 	}
         
 	/**
@@ -227,10 +219,14 @@ public class MessageHandler {
 			int clientId = Integer.parseInt(result[0]);
 			int score = Integer.parseInt(result[1]);
 
-			// Retrieve the player ID from the client list
-			int playerId = clientList.getClientByID(clientId).getPlayerId();
+			// Retrieve the player ID from the client list.  Clients that have
+			// already left are skipped; they are recorded as disconnected when
+			// the game ends
+			Client player = clientList.getClientByID(clientId);
+
+			if (player == null) continue;
 
-			resultList.add(new GameResultData(playerId, score, false));
+			resultList.add(new GameResultData(player.getPlayerId(), score, false));
 		}
 
 		client.setResultList(resultList);
@@ -239,11 +235,18 @@ public class MessageHandler {
 	/**
 	 * Client wants to see highscores for a game (specified by game Id).
 	 * @param client the client.
-	 * @param data Data associated with the request. Formatted as gameId.
+	 * @param data Data associated with the request. Formatted as gameId, or
+	 * as gameId,window to ask for scores from a window of time.
 	 */
 	private static void sendHighScores(Client client, String data) {
-		int gameId = Integer.parseInt(data);
-		client.sendHighScores(gameId);
+		int comma = data.indexOf(',');
+
+		if (comma < 0) {
+			client.sendHighScores(Integer.parseInt(data), HighScoreData.WINDOW_ALL_TIME);
+		} else {
+			client.sendHighScores(Integer.parseInt(data.substring(0, comma)),
+					Integer.parseInt(data.substring(comma + 1)));
+		}
 	}
 	
 	/**
@@ -0,0 +1,103 @@
+package pacserver;
+
+import java.util.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * Bounded, lock-free queue of messages that any number of threads may add to
+ * but only one thread may take from.  Producers claim a slot by advancing the
+ * tail and then publish the message into it; the consumer takes messages
+ * from the head until it reaches a slot that has not been published yet.  No
+ * memory is allocated once the ring has been created.
+ */
+public class MessageRing {
+
+	// Members
+	private AtomicReferenceArray<Message> mSlots;
+	private int mMask;
+	private AtomicLong mTail;
+	private volatile long mHead;
+
+	/**
+	 * Constructor.
+	 * @param capacity The number of messages the ring can hold.  Must be a
+	 * power of two.
+	 */
+	public MessageRing(int capacity) {
+		if ((capacity <= 0) || ((capacity & (capacity - 1)) != 0)) {
+			throw new IllegalArgumentException("Capacity must be a power of two");
+		}
+
+		mSlots = new AtomicReferenceArray<Message>(capacity);
+		mMask = capacity - 1;
+		mTail = new AtomicLong(0);
+		mHead = 0;
+	}
+
+	/**
+	 * Move messages from the ring into a collection, in the order in which
+	 * they were added.  Must only be called by the consumer.
+	 * @param target The collection to add the messages to.
+	 * @param maxMessages The maximum number of messages to move.
+	 * @return The number of messages moved.
+	 */
+	public int drainTo(Collection<? super Message> target, int maxMessages) {
+		long head = mHead;
+		int count = 0;
+
+		while (count < maxMessages) {
+			int index = (int)(head + count) & mMask;
+
+			Message msg = mSlots.get(index);
+
+			if (msg == null) break;
+
+			mSlots.lazySet(index, null);
+			target.add(msg);
+			count++;
+		}
+
+		// Release all of the drained slots at once
+		if (count > 0) mHead = head + count;
+
+		return count;
+	}
+
+	/**
+	 * Add a message to the end of the ring if there is room for it.
+	 * @param msg The message to add.
+	 * @return True if the message was added; false if the ring is full.
+	 */
+	public boolean offer(Message msg) {
+		long tail;
+
+		// Claim the slot at the tail
+		do {
+			tail = mTail.get();
+
+			if (tail - mHead > mMask) return false;
+		} while (!mTail.compareAndSet(tail, tail + 1));
+
+		// Publish the message into the slot
+		mSlots.lazySet((int)tail & mMask, msg);
+
+		return true;
+	}
+
+	/**
+	 * Get the number of messages in the ring.  Includes messages that are
+	 * still being added.
+	 * @return The number of messages in the ring.
+	 */
+	public int size() {
+		return (int)(mTail.get() - mHead);
+	}
+
+	/**
+	 * Get the number of messages the ring can hold.
+	 * @return The capacity of the ring.
+	 */
+	public int getCapacity() {
+		return mMask + 1;
+	}
+}
@@ -1,116 +1,331 @@
 package pacserver;
 
+import java.io.*;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
 /**
- * Basic class for a thread that can handle a list of clients and a postbox.
+ * Basic class for a thread that hosts one or more groups of clients.  Client
+ * I/O is driven by a selector owned by the thread; only clients whose
+ * channels are ready are read from or written to.  Groups are processed only
+ * when they have been woken, typically because a message has been posted to
+ * them.  The thread sleeps inside the selector until a channel is ready, a
+ * group is woken or a group is handed to the thread.
+ *
+ * Output sent to clients by the thread is held back until the end of each
+ * pass, so that everything a client is sent during a pass is written with as
+ * few system calls and packets as possible.
  */
-public class PacThread extends Thread {
+public class PacThread extends Thread implements GroupHost {
 
 	// Members
-	private ClientList mClientList;
-	private ClientList mDeadClientList;
-	private PostBox mPostBox;
-	
+	private Selector mSelector;
+	private ArrayList<ClientGroup> mGroups;
+	private ConcurrentLinkedQueue<ClientGroup> mIncomingGroups;
+	private ConcurrentLinkedQueue<ClientGroup> mReadyGroups;
+	private ArrayList<Client> mFlushList;
+	private AtomicInteger mLoad;
+
 	/**
 	 * Constructor.
 	 */
 	public PacThread() {
 		super();
-		mPostBox = new PostBox();
-		mClientList = new ClientList();
-		mDeadClientList = new ClientList();
+		init();
 	}
-	
+
 	/**
 	 * Constructor.
 	 * @param name Name of the thread.
 	 */
 	public PacThread(String name) {
 		super(name);
-		mPostBox = new PostBox();
-		mClientList = new ClientList();
-		mDeadClientList = new ClientList();
+		init();
+	}
+
+	/**
+	 * Create the thread's selector and queues.
+	 */
+	private void init() {
+		mGroups = new ArrayList<ClientGroup>();
+		mIncomingGroups = new ConcurrentLinkedQueue<ClientGroup>();
+		mReadyGroups = new ConcurrentLinkedQueue<ClientGroup>();
+		mFlushList = new ArrayList<Client>();
+		mLoad = new AtomicInteger(0);
+
+		try {
+			mSelector = Selector.open();
+		} catch (IOException e) {
+			throw new RuntimeException("Could not open selector: " + e);
+		}
+	}
+
+	/**
+	 * Hand a group to the thread.  The thread starts hosting the group at the
+	 * start of its next pass.
+	 * @param group The group to host.
+	 */
+	public void addGroup(ClientGroup group) {
+		mLoad.addAndGet(group.getLoad());
+		mIncomingGroups.add(group);
+		wakeup();
 	}
-	
+
 	/**
-	 * Get the client list.
-	 * @return The client list.
+	 * Get the total load of the groups hosted by, or being handed to, the
+	 * thread.
+	 * @return The load of the thread.
 	 */
-	protected ClientList getClientList() { return mClientList; }
-	
+	public int getLoad() { return mLoad.get(); }
+
 	/**
-	 * Get the list of dead clients.
-	 * @return The list of dead clients.
+	 * Get the number of groups hosted by the thread.  Must only be called by
+	 * the thread itself.
+	 * @return The number of groups.
 	 */
-	protected ClientList getDeadClientList() { return mDeadClientList; }
-	
+	protected int getGroupCount() { return mGroups.size(); }
+
 	/**
-	 * Get the post box.
-	 * @return The post box.
+	 * Get a group hosted by the thread.  Must only be called by the thread
+	 * itself.
+	 * @param i The index of the group.
+	 * @return The group.
 	 */
-	protected PostBox getPostBox() { return mPostBox; }
-	
+	protected ClientGroup getGroup(int i) { return mGroups.get(i); }
+
 	/**
-	 * Add an existing client to the thread.
-	 * @param client The client to add to the thread.
+	 * Queue a group to be processed.  Called when the group is woken.
+	 * @param group The group to process.
 	 */
-	public void addClient(Client client) {
-		client.setPostBox(mPostBox);
-		client.setResultList(null);
-		mClientList.add(client);
+	public void schedule(ClientGroup group) {
+		mReadyGroups.add(group);
+		wakeup();
 	}
 
 	/**
-	 * Remove a client from the client list.
-	 * @param client The client to remove.
+	 * Register a client's channel with the thread's selector.  Must only be
+	 * called by the thread itself.
+	 * @param client The client to register.
 	 */
-	public void removeClient(Client client) {
-		mClientList.remove(client);
+	public void register(Client client) {
+		client.register(mSelector);
 	}
-	
+
 	/**
-	 * Get the number of clients connected to this thread.
-	 * @return Number of clients connected to this thread.
+	 * Wake the thread if it is waiting for work.  Has no effect if called by
+	 * the thread itself, as it is evidently not waiting.
 	 */
-	public int getClientCount() { return mClientList.size(); }
-	
+	public void wakeup() {
+		if (Thread.currentThread() != this) {
+			mSelector.wakeup();
+		}
+	}
+
 	/**
-	 * Receives messages from the client.
+	 * Defer flushing a client's output until the end of the current pass.
+	 * Only output sent by the thread itself can be deferred.
+	 * @param client The client to flush.
+	 * @return True if the flush was deferred.
+	 */
+	public boolean deferFlush(Client client) {
+		if (Thread.currentThread() != this) return false;
+
+		mFlushList.add(client);
+
+		return true;
+	}
+
+	/**
+	 * Close the selector.  Should be called when the thread exits.
+	 */
+	protected void closeSelector() {
+		try {
+			mSelector.close();
+		} catch (IOException e) {
+			// Ignore
+		}
+	}
+
+	/**
+	 * Services clients and processes groups.
 	 */
 	@Override
 	public void run() {
 		while (true) {
+			runOnce();
+		}
+	}
 
-			// Runs client code for all clients.
-			for (int i = 0; i < mClientList.size(); ++i) {
-				mClientList.get(i).run();
+	/**
+	 * Perform a single pass of the thread loop.  Waits until there is work to
+	 * do, then reads from and writes to all ready clients and processes any
+	 * groups that have been woken.
+	 */
+	protected void runOnce() {
+
+		addIncomingGroups();
+
+		long wait = flushClients(false);
+		long idleWait = getIdleWait();
+
+		if ((wait < 0) || ((idleWait >= 0) && (idleWait < wait))) wait = idleWait;
+
+		// Sleep until a channel is ready, the thread is woken, held back
+		// output is due or the idle time expires
+		try {
+			if (!mReadyGroups.isEmpty() || (wait == 0)) {
+				mSelector.selectNow();
+			} else if (wait > 0) {
+				mSelector.select(wait);
+			} else {
+				mSelector.select();
 			}
 
-			// Process any pending messages
-			MessageHandler.processMessages(mPostBox, mClientList);
-			
-			removeDeadClients();
+			handleSelectedKeys();
+		} catch (IOException e) {
+			System.out.println("Error selecting clients: " + e);
 		}
+
+		addIncomingGroups();
+
+		processReadyGroups();
+
+		flushClients(false);
+
+		idle();
 	}
-	
+
 	/**
-	 * Remove dead clients from the client list.
+	 * Start hosting all groups that have been handed to the thread.
 	 */
-	protected void removeDeadClients() {
-		
-		// Remove all dead clients
+	private void addIncomingGroups() {
+		ClientGroup group;
+
+		while ((group = mIncomingGroups.poll()) != null) {
+			mGroups.add(group);
+			group.setHost(this);
+		}
+	}
+
+	/**
+	 * Stop hosting a group.  The group's clients are deregistered from the
+	 * selector; it can then be handed to another thread.  Must only be called
+	 * by the thread itself.
+	 * @param group The group to remove.
+	 */
+	protected void removeGroup(ClientGroup group) {
+		int i = mGroups.indexOf(group);
+
+		if (i < 0) return;
+
+		// Order is unimportant, so fill the gap with the last group
+		mGroups.set(i, mGroups.get(mGroups.size() - 1));
+		mGroups.remove(mGroups.size() - 1);
+		mLoad.addAndGet(-group.getLoad());
+
+		group.setHost(null);
+
+		// Write anything still held back for the group's clients
+		flushClients(true);
+
+		ClientList clients = group.getClientList();
+
+		for (int j = 0; j < clients.size(); ++j) {
+			clients.get(j).deregister();
+		}
+	}
+
+	/**
+	 * Process every group that was woken before the pass started.  Groups
+	 * woken whilst processing are left for the next pass.  Finished groups
+	 * are removed.
+	 */
+	private void processReadyGroups() {
+		for (int i = mReadyGroups.size(); i > 0; --i) {
+			ClientGroup group = mReadyGroups.poll();
+
+			if (group == null) break;
+
+			// Group has been handed to another thread since it was woken
+			if (group.getHost() != this) continue;
+
+			group.process();
+
+			if (group.isFinished()) {
+				removeGroup(group);
+				group.finished();
+			}
+		}
+	}
+
+	/**
+	 * Get the longest time the thread should sleep when it has nothing else
+	 * to wait for.
+	 * @return Time in milliseconds, or -1 to sleep until woken.
+	 */
+	protected long getIdleWait() { return -1; }
+
+	/**
+	 * Perform any work specific to the thread.  Called at the end of every
+	 * pass.
+	 */
+	protected void idle() { }
+
+	/**
+	 * Write the held back output of every client whose flush delay has
+	 * expired.
+	 * @param force If true, all held back output is written regardless of the
+	 * flush delay.
+	 * @return Time in milliseconds until the next client is due to be
+	 * flushed, or -1 if no output is being held back.
+	 */
+	protected long flushClients(boolean force) {
+		long now = System.currentTimeMillis();
+		long wait = -1;
+
 		int i = 0;
-		while (i < getClientCount()) {
-			
-			Client client = getClientList().get(i);
-			
-			if (client.isDead()) {
-				
-				// Client dead, so move to the dead client list
-				getClientList().remove(client);
-				--i;
+		while (i < mFlushList.size()) {
+			Client client = mFlushList.get(i);
+
+			if (!client.isFlushPending()) {
+
+				// Already written
+				mFlushList.remove(i);
+			} else if (force || (client.getFlushDeadline() <= now)) {
+				client.flush();
+				mFlushList.remove(i);
+			} else {
+				long remaining = client.getFlushDeadline() - now;
+
+				if ((wait < 0) || (remaining < wait)) wait = remaining;
+
+				++i;
+			}
+		}
+
+		return wait;
+	}
+
+	/**
+	 * Read from and write to all clients whose channels are ready.
+	 */
+	private void handleSelectedKeys() {
+		Iterator<SelectionKey> iterator = mSelector.selectedKeys().iterator();
+
+		while (iterator.hasNext()) {
+			SelectionKey key = iterator.next();
+			iterator.remove();
+
+			Client client = (Client)key.attachment();
+
+			try {
+				if (key.isValid() && key.isReadable()) client.read();
+				if (key.isValid() && key.isWritable()) client.flush();
+			} catch (CancelledKeyException e) {
+				// Client moved to another thread or closed; ignore
 			}
-			
-			++i;
 		}
 	}
 }
@@ -0,0 +1,96 @@
+package pacserver;
+
+import java.util.concurrent.*;
+import database.*;
+
+/**
+ * Encoded payloads of server responses that many clients ask for.  Each
+ * payload is created from data held in memory by the database and is
+ * replaced as soon as that data changes, so a request for it costs only a
+ * buffer write.
+ */
+public class PayloadCache {
+
+	// Constants
+
+	/** High scores of a game that has no scores yet */
+	private static final EncodedPayload NO_HIGH_SCORES = new EncodedPayload(Client.MESSAGE_HIGH_SCORES, "", null);
+
+	// Members
+	private static ConcurrentHashMap<Integer, EncodedPayload> mHighScores = new ConcurrentHashMap<Integer, EncodedPayload>();
+	private static ConcurrentHashMap<Integer, EncodedPayload> mGameStats = new ConcurrentHashMap<Integer, EncodedPayload>();
+	private static volatile EncodedPayload mGameList = null;
+
+	/**
+	 * Constructor.  Private to prevent creation.
+	 */
+	private PayloadCache() { }
+
+	/**
+	 * Get the high scores of a game.
+	 * @param gameId The ID of the game.
+	 * @param window One of the HighScoreData window constants.
+	 * @return The encoded high scores.
+	 */
+	public static EncodedPayload getHighScores(int gameId, int window) {
+		if ((window < 0) || (window >= HighScoreData.WINDOW_COUNT)) window = HighScoreData.WINDOW_ALL_TIME;
+
+		HighScoreData scores = Database.getHighScores(gameId, window);
+
+		if (scores.isEmpty()) return NO_HIGH_SCORES;
+
+		// Each window of each game has its own entry
+		int key = (gameId * HighScoreData.WINDOW_COUNT) + window;
+		EncodedPayload payload = mHighScores.get(key);
+
+		// The database publishes a new list whenever the scores change
+		if ((payload == null) || (payload.getSource() != scores)) {
+			payload = new EncodedPayload(Client.MESSAGE_HIGH_SCORES, scores.toString(), scores);
+			mHighScores.put(key, payload);
+		}
+
+		return payload;
+	}
+
+	/**
+	 * Get the list of available game types.
+	 * @return The encoded game list.
+	 */
+	public static EncodedPayload getGameList() {
+		GameList gameList = Database.getGameList();
+		EncodedPayload payload = mGameList;
+
+		// The database replaces the list rather than changing it
+		if ((payload == null) || (payload.getSource() != gameList)) {
+			payload = new EncodedPayload(Client.MESSAGE_GAME_LIST, gameList.toString(), gameList);
+			mGameList = payload;
+		}
+
+		return payload;
+	}
+
+	/**
+	 * Get the stats of a game.  The stats change whenever a game ends, so the
+	 * payload is checked against the current counters before it is reused.
+	 * @param gameId The ID of the game.
+	 * @return The encoded game stats.
+	 */
+	public static EncodedPayload getGameStats(int gameId) {
+		int timesPlayed = Database.getGamesPlayed(gameId);
+		long totalDuration = Database.getGameDuration(gameId);
+		EncodedPayload payload = mGameStats.get(gameId);
+
+		if (payload != null) {
+			GameStats stats = (GameStats)payload.getSource();
+
+			if ((stats.getTimesPlayed() == timesPlayed) && (stats.getTotalDuration() == totalDuration)) return payload;
+		}
+
+		GameStats stats = new GameStats(gameId, totalDuration, timesPlayed);
+
+		payload = new EncodedPayload(Client.MESSAGE_GAME_STATS, stats.toString(), stats);
+		mGameStats.put(gameId, payload);
+
+		return payload;
+	}
+}
@@ -1,45 +1,277 @@
 package pacserver;
 
 import java.util.*;
+import java.util.concurrent.locks.*;
 
 /**
  * Container for messages that are sent to the server, awaiting processing and
- * delivery.  Wrapper around a LinkedList that provides synchronized add and
- * retrieval.  Functions like a queue, so first messages in are first out.
+ * delivery.  Functions like a queue, so first messages in are first out.
+ * Adding a message wakes the group that owns the postbox.
+ *
+ * Messages travel in two lanes, each a lock-free ring that any number of
+ * threads may add to but only the owning group's host may take from.
+ * Messages addressed to the server, such as game end, logout and ping, use
+ * the control lane; messages relayed to other clients use the gameplay lane.
+ * Control messages are taken first, so a burst of gameplay traffic cannot
+ * delay them, but never take up the whole of a batch whilst gameplay
+ * messages are waiting.  Messages within a lane keep their order.
+ *
+ * Position updates can be conflated as they are taken: if a sender has
+ * several position updates for the same destination waiting, only the latest
+ * is delivered.  All other messages are never dropped.
  */
 public class PostBox {
-	
+
+	// Constants
+
+	/** Default number of messages each lane can hold.  Must be a power of two. */
+	public static final int DEFAULT_CAPACITY = 1024;
+
+	/**
+	 * Whilst gameplay messages are waiting, control messages may fill at most
+	 * this fraction of a batch, expressed as the denominator of the share left
+	 * for gameplay messages
+	 */
+	private static final int GAMEPLAY_SHARE = 4;
+
+	/**
+	 * Number of times a producer retries a full postbox before yielding.
+	 * Spinning only helps if the owner can run at the same time.
+	 */
+	private static final int SPIN_TRIES = (Runtime.getRuntime().availableProcessors() > 1 ? 100 : 0);
+
+	/** Number of times a producer yields to a full postbox before parking */
+	private static final int YIELD_TRIES = 100;
+
+	/** Time in nanoseconds a producer parks between retries of a full postbox */
+	private static final long PARK_TIME = 100000;
+
 	// Members
-	private LinkedList<String> mMessages;
-	
+	private MessageRing mControl;
+	private MessageRing mGameplay;
+	private ClientGroup mOwner;
+	private HashSet<Long> mLatest;
+	private volatile long mConflatedCount;
+
 	/**
 	 * Constructor.
+	 * @param owner The group that processes the postbox's messages.
 	 */
-	public PostBox() {
-		mMessages = new LinkedList<String>();
+	public PostBox(ClientGroup owner) {
+		this(owner, DEFAULT_CAPACITY);
 	}
-	
+
 	/**
-	 * Get the first message in the queue.  Removes the message from the queue.
-	 * @return The first message.
+	 * Constructor.
+	 * @param owner The group that processes the postbox's messages.
+	 * @param capacity The number of messages each lane can hold.  Must be a
+	 * power of two.
 	 */
-	public synchronized String getMessage() {
-		return mMessages.poll();
+	public PostBox(ClientGroup owner, int capacity) {
+		mControl = new MessageRing(capacity);
+		mGameplay = new MessageRing(capacity);
+		mOwner = owner;
+		mLatest = new HashSet<Long>();
+		mConflatedCount = 0;
 	}
-	
+
 	/**
-	 * Add a message to the end of the queue.
+	 * Check if a message travels in the control lane.
+	 * @param msg The message to check.
+	 * @return True if the message is a control message.
+	 */
+	private static boolean isControl(Message msg) {
+		return msg.getTo() == Client.ADDRESS_SERVER;
+	}
+
+	/**
+	 * Move messages from the queue into a collection.  Control messages come
+	 * first; each lane keeps the order in which its messages were added.
+	 * Must only be called by the owning thread.
+	 * @param target The collection to add the messages to.
+	 * @param maxMessages The maximum number of messages to move.
+	 * @return The number of messages moved.
+	 */
+	public int drainTo(Collection<? super Message> target, int maxMessages) {
+		int count = mControl.drainTo(target, getControlLimit(maxMessages));
+
+		return count + mGameplay.drainTo(target, maxMessages - count);
+	}
+
+	/**
+	 * Move messages from the queue into a list, as drainTo() does, dropping
+	 * every position update that is superseded by a later update from the
+	 * same sender to the same destination.  The remaining messages keep their
+	 * order.  Must only be called by the owning thread.
+	 * @param target The list to add the messages to.
+	 * @param maxMessages The maximum number of messages to take from the
+	 * queue.
+	 * @return The number of messages added to the list.
+	 */
+	public int drainConflated(List<Message> target, int maxMessages) {
+		int controlCount = mControl.drainTo(target, getControlLimit(maxMessages));
+
+		// Only the gameplay lane carries position updates
+		int start = target.size();
+		int count = mGameplay.drainTo(target, maxMessages - controlCount);
+
+		// Nothing can be superseded
+		if (count < 2) return controlCount + count;
+
+		int dropped = 0;
+
+		// Walk backwards so that the first update seen from each sender to
+		// each destination is the latest one
+		for (int i = target.size() - 1; i >= start; --i) {
+			Message msg = target.get(i);
+
+			if (!msg.isPositionUpdate()) continue;
+
+			if (!mLatest.add(getConflationKey(msg))) {
+				target.set(i, null);
+				dropped++;
+			}
+		}
+
+		// Close the gaps left by dropped messages and reset the index
+		int j = start;
+
+		for (int i = start; i < target.size(); ++i) {
+			Message msg = target.get(i);
+
+			if (msg == null) continue;
+
+			if (msg.isPositionUpdate()) mLatest.remove(getConflationKey(msg));
+
+			target.set(j++, msg);
+		}
+
+		while (target.size() > j) {
+			target.remove(target.size() - 1);
+		}
+
+		if (dropped > 0) mConflatedCount += dropped;
+
+		return controlCount + count - dropped;
+	}
+
+	/**
+	 * Get the key under which a position update is conflated: its sender and
+	 * its destination.
+	 * @param msg The position update.
+	 * @return The key.
+	 */
+	private static long getConflationKey(Message msg) {
+		return ((long)msg.getFrom() << 32) | (msg.getTo() & 0xffffffffL);
+	}
+
+	/**
+	 * Get the number of control messages that may be taken in a batch, so
+	 * that waiting gameplay messages still get a share.
+	 * @param maxMessages The size of the batch.
+	 * @return The maximum number of control messages.
+	 */
+	private int getControlLimit(int maxMessages) {
+		if (mGameplay.size() == 0) return maxMessages;
+
+		return maxMessages - Math.max(1, maxMessages / GAMEPLAY_SHARE);
+	}
+
+	/**
+	 * Get the number of position updates that have been dropped because a
+	 * later update superseded them.
+	 * @return The number of conflated messages.
+	 */
+	public long getConflatedCount() { return mConflatedCount; }
+
+	/**
+	 * Add a message to the end of its lane if there is room for it.
 	 * @param msg The message to add to the queue.
+	 * @return True if the message was added; false if its lane is full.
+	 */
+	public boolean offer(Message msg) {
+		MessageRing lane = (isControl(msg) ? mControl : mGameplay);
+
+		if (!lane.offer(msg)) return false;
+
+		mOwner.wakeup();
+
+		return true;
+	}
+
+	/**
+	 * Add a message to the end of the queue, waiting for room if the postbox
+	 * is full.  Must not be called by the owning thread, which would wait for
+	 * itself; the owning thread should use offer() instead.
+	 * @param msg The message to add to the queue.
+	 */
+	public void addMessage(Message msg) {
+		int tries = 0;
+
+		while (!offer(msg)) {
+
+			// Back off progressively whilst the owner catches up
+			if (tries < SPIN_TRIES) {
+				tries++;
+			} else if (tries < SPIN_TRIES + YIELD_TRIES) {
+				tries++;
+				Thread.yield();
+			} else {
+				LockSupport.parkNanos(PARK_TIME);
+			}
+		}
+	}
+
+	/**
+	 * Wake the group that owns the postbox without adding a message.
 	 */
-	public synchronized void addMessage(String msg) {
-		mMessages.add(msg);
+	public void wakeOwner() {
+		mOwner.wakeup();
 	}
-	
+
 	/**
-	 * Get the number of messages in the postbox.
+	 * Run a task on the thread that hosts the postbox's group the next time
+	 * the group is processed.
+	 * @param task The task to run.
+	 */
+	public void execute(Runnable task) {
+		mOwner.execute(task);
+	}
+
+	/**
+	 * Ask the thread that hosts the postbox's group to flush a client's output
+	 * when it finishes its current pass.
+	 * @param client The client to flush.
+	 * @return True if the flush was deferred; false if the caller is not the
+	 * hosting thread and must flush the client itself.
+	 */
+	public boolean deferFlush(Client client) {
+		return mOwner.deferFlush(client);
+	}
+
+	/**
+	 * Tell the postbox's group that a client has changed its username.
+	 * @param client The client that was renamed.
+	 */
+	public void clientRenamed(Client client) {
+		mOwner.clientRenamed(client);
+	}
+
+	/**
+	 * Get the number of messages in the postbox.  Includes messages that are
+	 * still being added, so the owning thread should not sleep whilst the
+	 * size is non-zero.
 	 * @return The number of messages in the postbox.
 	 */
-	public synchronized int size() {
-		return mMessages.size();
+	public int size() {
+		return mControl.size() + mGameplay.size();
+	}
+
+	/**
+	 * Get the number of messages the postbox can hold across both lanes.
+	 * @return The capacity of the postbox.
+	 */
+	public int getCapacity() {
+		return mControl.getCapacity() + mGameplay.getCapacity();
 	}
 }
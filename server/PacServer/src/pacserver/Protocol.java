@@ -0,0 +1,672 @@
+package pacserver;
+
+import java.net.*;
+import java.nio.*;
+import java.nio.charset.*;
+
+/**
+ * Encodes and decodes messages on the wire.  Two protocols are supported:
+ *
+ * Text (version 1): one message per line, formatted as from,to,type:data.
+ * Understood by all clients and used by every connection until the client
+ * negotiates otherwise during the handshake.
+ *
+ * Binary (version 2): length-prefixed frames with a fixed-width header.
+ * Frame format: length (2 bytes, unsigned, counts the bytes that follow),
+ * from (4), to (4), type (2), payload.  The payload is encoded with a codec
+ * chosen from the header, so that common structured data (sprite positions,
+ * peer lists, results and high scores) is sent as binary fields rather than
+ * as text.  Both ends convert payloads to and from the text data format, so
+ * text and binary clients can share a game.
+ *
+ * Negotiation: after receiving the handshake, a client that supports the
+ * binary protocol sends a handshake message to the server containing the
+ * highest version it supports and sends nothing else until it receives a
+ * reply.  Every byte the client sends after that message uses the agreed
+ * protocol.  The server replies with a text handshake containing the agreed
+ * version, and every byte the server sends after the reply uses that
+ * protocol.
+ */
+public class Protocol {
+
+	// Constants
+
+	/** Newline-delimited text protocol */
+	public static final int VERSION_TEXT = 1;
+
+	/** Length-prefixed binary protocol */
+	public static final int VERSION_BINARY = 2;
+
+	/** Highest protocol version supported by the server */
+	public static final int VERSION = VERSION_BINARY;
+
+	/** Character set used to encode text */
+	public static final Charset CHARSET = Charset.forName("UTF-8");
+
+	/** Text message delimiter */
+	public static final byte DELIMITER = '\n';
+
+	/** Size of the binary frame header in bytes, including the length field */
+	public static final int HEADER_SIZE = 12;
+
+	/** Size of the binary frame length field in bytes */
+	public static final int LENGTH_SIZE = 2;
+
+	/** Maximum size of a binary frame in bytes, including the length field */
+	public static final int MAX_FRAME_SIZE = 0xFFFF + LENGTH_SIZE;
+
+	/** Type of the game message that carries sprite positions */
+	public static final int MESSAGE_SPRITE_DATA = 1;
+
+	/** Sprite directions, in the order in which they are numbered on the wire */
+	private static final String[] DIRECTIONS = { "NONE", "UP", "DOWN", "LEFT", "RIGHT" };
+
+	// Payload codecs
+	private static final int CODEC_STRING = 0;
+	private static final int CODEC_INT = 1;
+	private static final int CODEC_PAIR_LIST = 2;
+	private static final int CODEC_RESULT_LIST = 3;
+	private static final int CODEC_GAME_STATS = 4;
+	private static final int CODEC_SPRITE_DATA = 5;
+	private static final int CODEC_SCORE_REQUEST = 6;
+
+	/**
+	 * Constructor.  Private to prevent creation.
+	 */
+	private Protocol() { }
+
+	/**
+	 * Decode a line of text into a message.  The header is scanned in place.
+	 * Only messages to the server have their data decoded; other messages
+	 * keep the line as received so that it can be relayed untouched.
+	 * @param bytes Array containing the line.
+	 * @param offset Offset of the line in the array.
+	 * @param length Length of the line, excluding the delimiter.
+	 * @return The message, or null if the line does not contain a valid header.
+	 */
+	public static Message decodeLine(byte[] bytes, int offset, int length) {
+
+		int end = offset + length;
+
+		// Locate the header fields, which must be separated by exactly two
+		// commas
+		int colon = indexOf(bytes, (byte)':', offset, end);
+		int comma1 = indexOf(bytes, (byte)',', offset, colon);
+
+		if (comma1 == colon) return null;
+
+		int comma2 = indexOf(bytes, (byte)',', comma1 + 1, colon);
+
+		if ((comma2 == colon) || (indexOf(bytes, (byte)',', comma2 + 1, colon) != colon)) return null;
+
+		int from;
+		int to;
+		int type;
+
+		try {
+			from = parseInt(bytes, offset, comma1);
+			to = parseInt(bytes, comma1 + 1, comma2);
+			type = parseInt(bytes, comma2 + 1, colon);
+		} catch (NumberFormatException e) {
+			return null;
+		}
+
+		if ((to != Client.ADDRESS_SERVER) && (colon < end)) {
+
+			// Relay the line as received
+			byte[] line = new byte[length + 1];
+			System.arraycopy(bytes, offset, line, 0, length);
+			line[length] = DELIMITER;
+
+			return new Message(from, to, type, VERSION_TEXT, ByteBuffer.wrap(line));
+		}
+
+		String data = (colon < end ? new String(bytes, colon + 1, end - colon - 1, CHARSET) : "");
+
+		return new Message(from, to, type, data);
+	}
+
+	/**
+	 * Find a byte within a range of an array.
+	 * @param bytes The array to search.
+	 * @param value The byte to find.
+	 * @param start Start of the range.
+	 * @param end End of the range, exclusive.
+	 * @return The index of the byte, or end if it is not in the range.
+	 */
+	private static int indexOf(byte[] bytes, byte value, int start, int end) {
+		int i = start;
+
+		while ((i < end) && (bytes[i] != value)) {
+			i++;
+		}
+
+		return i;
+	}
+
+	/**
+	 * Parse a decimal integer from a range of an array without creating a
+	 * string.  Accepts the same input as Integer.parseInt().
+	 * @param bytes The array containing the digits.
+	 * @param start Start of the range.
+	 * @param end End of the range, exclusive.
+	 * @return The integer.
+	 * @throws NumberFormatException Thrown if the range is not an integer.
+	 */
+	private static int parseInt(byte[] bytes, int start, int end) {
+
+		if (start == end) throw new NumberFormatException("Empty number");
+
+		boolean negative = (bytes[start] == '-');
+		int i = start;
+
+		if (negative || (bytes[start] == '+')) {
+			if (++i == end) throw new NumberFormatException("No digits");
+		}
+
+		long value = 0;
+
+		for (; i < end; ++i) {
+			int digit = bytes[i] - '0';
+
+			if ((digit < 0) || (digit > 9)) throw new NumberFormatException("Invalid digit");
+
+			value = (value * 10) + digit;
+
+			if (value > (long)Integer.MAX_VALUE + 1) throw new NumberFormatException("Number too large");
+		}
+
+		if (negative) value = -value;
+
+		if (value > Integer.MAX_VALUE) throw new NumberFormatException("Number too large");
+
+		return (int)value;
+	}
+
+	/**
+	 * Decode the data of a message that was kept as received.
+	 * @param encoded The message as received.
+	 * @param version The protocol that the message was received in.
+	 * @param from Source id.
+	 * @param to Destination id.
+	 * @param type Type of the message.
+	 * @return The text data.
+	 */
+	public static String decodeData(ByteBuffer encoded, int version, int from, int to, int type) {
+
+		if (version >= VERSION_BINARY) {
+			encoded.position(HEADER_SIZE);
+			return decodePayload(getCodec(from, to, type), encoded);
+		}
+
+		// Data lies between the first colon and the delimiter
+		int colon = 0;
+
+		while (encoded.get(colon) != ':') {
+			colon++;
+		}
+
+		byte[] data = new byte[encoded.limit() - colon - 2];
+
+		encoded.position(colon + 1);
+		encoded.get(data);
+
+		return new String(data, CHARSET);
+	}
+
+	/**
+	 * Encode a message as a line of text, including the delimiter.
+	 * @param message The message to encode.
+	 * @return The encoded message.
+	 */
+	public static byte[] encodeLine(Message message) {
+		byte[] text = message.toString().getBytes(CHARSET);
+		byte[] line = new byte[text.length + 1];
+
+		System.arraycopy(text, 0, line, 0, text.length);
+		line[text.length] = DELIMITER;
+
+		return line;
+	}
+
+	/**
+	 * Decode a binary frame from the buffer.  The buffer must be in read mode.
+	 * If the buffer contains a complete frame, the frame is consumed;
+	 * otherwise the buffer is left untouched.  Only messages to the server
+	 * have their payload decoded; other messages keep the frame as received
+	 * so that it can be relayed untouched.
+	 * @param buffer The buffer to decode from.
+	 * @return The message, or null if the buffer does not yet contain a
+	 * complete frame.
+	 * @throws ProtocolException Thrown if the frame is malformed.
+	 */
+	public static Message decodeFrame(ByteBuffer buffer) throws ProtocolException {
+
+		if (buffer.remaining() < LENGTH_SIZE) return null;
+
+		int start = buffer.position();
+		int length = buffer.getShort(start) & 0xFFFF;
+
+		if (length < HEADER_SIZE - LENGTH_SIZE) {
+			throw new ProtocolException("Invalid frame length " + length);
+		}
+
+		if (buffer.remaining() < LENGTH_SIZE + length) return null;
+
+		int from = buffer.getInt(start + 2);
+		int to = buffer.getInt(start + 6);
+		int type = buffer.getShort(start + 10);
+
+		if (to != Client.ADDRESS_SERVER) {
+			int codec = getCodec(from, to, type);
+
+			if (!isValidPayload(codec, buffer, start + HEADER_SIZE, start + LENGTH_SIZE + length)) {
+				throw new ProtocolException("Invalid payload for message type " + type);
+			}
+
+			// Relay the frame as received
+			byte[] frame = new byte[LENGTH_SIZE + length];
+			buffer.get(frame);
+
+			return new Message(from, to, type, VERSION_BINARY, ByteBuffer.wrap(frame));
+		}
+
+		// Decode the payload from a view of this frame only
+		ByteBuffer payload = buffer.duplicate();
+		payload.position(start + HEADER_SIZE);
+		payload.limit(start + LENGTH_SIZE + length);
+
+		buffer.position(start + LENGTH_SIZE + length);
+
+		try {
+			return new Message(from, to, type, decodePayload(getCodec(from, to, type), payload));
+		} catch (RuntimeException e) {
+			throw new ProtocolException("Invalid payload for message type " + type);
+		}
+	}
+
+	/**
+	 * Check that a payload can be decoded, without decoding it.
+	 * @param codec The codec of the payload.
+	 * @param buffer Buffer containing the payload.
+	 * @param start Start of the payload in the buffer.
+	 * @param end End of the payload in the buffer, exclusive.
+	 * @return True if the payload is valid.
+	 */
+	private static boolean isValidPayload(int codec, ByteBuffer buffer, int start, int end) {
+		switch (codec) {
+			case CODEC_SPRITE_DATA:
+
+				// x, y, direction, buffered direction
+				return (end - start == 6) && isDirection(buffer.get(start + 4)) && isDirection(buffer.get(start + 5));
+
+			case CODEC_STRING:
+				return (end - start >= 2) && ((buffer.getShort(start) & 0xFFFF) == end - start - 2);
+
+			default:
+				ByteBuffer payload = buffer.duplicate();
+				payload.position(start);
+				payload.limit(end);
+
+				try {
+					decodePayload(codec, payload);
+					return true;
+				} catch (RuntimeException e) {
+					return false;
+				}
+		}
+	}
+
+	/**
+	 * Check if a byte is the wire number of a sprite direction.
+	 * @param value The byte to check.
+	 * @return True if the byte is a direction.
+	 */
+	private static boolean isDirection(byte value) {
+		return (value >= 0) && (value < DIRECTIONS.length);
+	}
+
+	/**
+	 * Encode a message as a binary frame.
+	 * @param message The message to encode.
+	 * @return The encoded message, or null if the message data cannot be
+	 * represented in the binary protocol.
+	 */
+	public static byte[] encodeFrame(Message message) {
+
+		String data = message.getData();
+
+		// Large enough for the worst case of any codec
+		ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + (data.length() * 4) + 16);
+
+		try {
+			buffer.position(HEADER_SIZE);
+			encodePayload(getCodec(message.getFrom(), message.getTo(), message.getType()), data, buffer);
+		} catch (RuntimeException e) {
+			Debug.print("Cannot encode message: " + message);
+			return null;
+		}
+
+		int size = buffer.position();
+
+		if (size > MAX_FRAME_SIZE) return null;
+
+		buffer.putShort(0, (short)(size - LENGTH_SIZE));
+		buffer.putInt(2, message.getFrom());
+		buffer.putInt(6, message.getTo());
+		buffer.putShort(10, (short)message.getType());
+
+		byte[] frame = new byte[size];
+		System.arraycopy(buffer.array(), 0, frame, 0, size);
+
+		return frame;
+	}
+
+	/**
+	 * Encode a message in the specified protocol.
+	 * @param message The message to encode.
+	 * @param version The protocol version.
+	 * @return The encoded message, or null if it cannot be encoded.
+	 */
+	public static byte[] encode(Message message, int version) {
+		if (version >= VERSION_BINARY) return encodeFrame(message);
+		return encodeLine(message);
+	}
+
+	/**
+	 * Encode the body of a server response, everything after the header, so
+	 * that it can be shared by responses to many clients.  The body is sent
+	 * after a header created with encodeHeader().
+	 * @param type Type of the message.
+	 * @param data Data of the message.
+	 * @param version The protocol version.
+	 * @return The encoded body, or null if it cannot be encoded.
+	 */
+	public static byte[] encodeBody(int type, String data, int version) {
+		if (version < VERSION_BINARY) {
+			byte[] text = data.getBytes(CHARSET);
+			byte[] body = new byte[text.length + 1];
+
+			System.arraycopy(text, 0, body, 0, text.length);
+			body[text.length] = DELIMITER;
+
+			return body;
+		}
+
+		ByteBuffer buffer = ByteBuffer.allocate((data.length() * 4) + 16);
+
+		try {
+			encodePayload(getCodec(Client.ADDRESS_SERVER, Client.ADDRESS_ALL_CLIENTS, type), data, buffer);
+		} catch (RuntimeException e) {
+			Debug.print("Cannot encode data: " + data);
+			return null;
+		}
+
+		if (buffer.position() > MAX_FRAME_SIZE - HEADER_SIZE) return null;
+
+		byte[] body = new byte[buffer.position()];
+		System.arraycopy(buffer.array(), 0, body, 0, body.length);
+
+		return body;
+	}
+
+	/**
+	 * Encode the header of a message whose body has already been encoded.
+	 * @param from Source id.
+	 * @param to Destination id.
+	 * @param type Type of the message.
+	 * @param version The protocol version.
+	 * @param bodyLength Length of the encoded body.
+	 * @return The encoded header.
+	 */
+	public static ByteBuffer encodeHeader(int from, int to, int type, int version, int bodyLength) {
+		if (version < VERSION_BINARY) {
+			return ByteBuffer.wrap((from + "," + to + "," + type + ":").getBytes(CHARSET));
+		}
+
+		ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+		header.putShort((short)(HEADER_SIZE - LENGTH_SIZE + bodyLength));
+		header.putInt(from);
+		header.putInt(to);
+		header.putShort((short)type);
+		header.flip();
+
+		return header;
+	}
+
+	/**
+	 * Choose the payload codec for a message.  Messages to the server are
+	 * requests, messages from the server are responses, and anything else is
+	 * a game message relayed between clients.
+	 * @param from Source id.
+	 * @param to Destination id.
+	 * @param type Type of the message.
+	 * @return The codec.
+	 */
+	private static int getCodec(int from, int to, int type) {
+		if (to == Client.ADDRESS_SERVER) {
+			switch (type) {
+				case Client.MESSAGE_HANDSHAKE:
+				case Client.MESSAGE_JOIN_GAME:
+				case Client.MESSAGE_GAME_STATS:
+					return CODEC_INT;
+				case Client.MESSAGE_HIGH_SCORES:
+					return CODEC_SCORE_REQUEST;
+				case Client.MESSAGE_GAME_END:
+					return CODEC_RESULT_LIST;
+			}
+		} else if (from == Client.ADDRESS_SERVER) {
+			switch (type) {
+				case Client.MESSAGE_HANDSHAKE:
+				case Client.MESSAGE_JOIN_GAME:
+				case Client.MESSAGE_CLIENT_FAILED:
+					return CODEC_INT;
+				case Client.MESSAGE_PEER_LIST:
+				case Client.MESSAGE_HIGH_SCORES:
+					return CODEC_PAIR_LIST;
+				case Client.MESSAGE_GAME_STATS:
+					return CODEC_GAME_STATS;
+			}
+		} else if (type == MESSAGE_SPRITE_DATA) {
+			return CODEC_SPRITE_DATA;
+		}
+
+		return CODEC_STRING;
+	}
+
+	/**
+	 * Convert text message data into a binary payload.
+	 * @param codec The codec to use.
+	 * @param data The text data.
+	 * @param out Buffer to write the payload to.
+	 */
+	private static void encodePayload(int codec, String data, ByteBuffer out) {
+		switch (codec) {
+			case CODEC_INT:
+
+				// id
+				out.putInt(Integer.parseInt(data));
+				break;
+
+			case CODEC_PAIR_LIST: {
+
+				// count, then int,string pairs
+				String split[] = data.split(",");
+				int count = (data.length() == 0 ? 0 : split.length / 2);
+
+				out.putShort((short)count);
+
+				for (int i = 0; i < count; ++i) {
+					out.putInt(Integer.parseInt(split[i * 2]));
+					putString(out, split[(i * 2) + 1]);
+				}
+				break;
+			}
+
+			case CODEC_RESULT_LIST: {
+
+				// count, then clientid,score pairs
+				String split[] = data.split(";");
+				int count = (data.length() == 0 ? 0 : split.length);
+
+				out.putShort((short)count);
+
+				for (int i = 0; i < count; ++i) {
+					String result[] = split[i].split(",");
+					out.putInt(Integer.parseInt(result[0]));
+					out.putInt(Integer.parseInt(result[1]));
+				}
+				break;
+			}
+
+			case CODEC_GAME_STATS: {
+
+				// gameid, totalduration, timesplayed
+				String split[] = data.split(",");
+				out.putInt(Integer.parseInt(split[0]));
+				out.putLong(Long.parseLong(split[1]));
+				out.putInt(Integer.parseInt(split[2]));
+				break;
+			}
+
+			case CODEC_SCORE_REQUEST: {
+
+				// gameid, then window if one was asked for
+				String split[] = data.split(",");
+				out.putInt(Integer.parseInt(split[0]));
+
+				if (split.length > 1) out.put(Byte.parseByte(split[1]));
+				break;
+			}
+
+			case CODEC_SPRITE_DATA: {
+
+				// x, y, direction, buffered direction
+				String split[] = data.split(",");
+				out.putShort(Short.parseShort(split[0]));
+				out.putShort(Short.parseShort(split[1]));
+				out.put(getDirection(split[2]));
+				out.put(getDirection(split[3]));
+				break;
+			}
+
+			default:
+				putString(out, data);
+				break;
+		}
+	}
+
+	/**
+	 * Convert a binary payload into text message data.
+	 * @param codec The codec to use.
+	 * @param in Buffer containing only the payload.
+	 * @return The text data.
+	 */
+	private static String decodePayload(int codec, ByteBuffer in) {
+		StringBuilder data = new StringBuilder();
+
+		switch (codec) {
+			case CODEC_INT:
+				data.append(in.getInt());
+				break;
+
+			case CODEC_PAIR_LIST: {
+				int count = in.getShort() & 0xFFFF;
+
+				for (int i = 0; i < count; ++i) {
+					if (i > 0) data.append(",");
+					data.append(in.getInt());
+					data.append(",");
+					data.append(getString(in));
+				}
+				break;
+			}
+
+			case CODEC_RESULT_LIST: {
+				int count = in.getShort() & 0xFFFF;
+
+				for (int i = 0; i < count; ++i) {
+					if (i > 0) data.append(";");
+					data.append(in.getInt());
+					data.append(",");
+					data.append(in.getInt());
+				}
+				break;
+			}
+
+			case CODEC_GAME_STATS:
+				data.append(in.getInt());
+				data.append(",");
+				data.append(in.getLong());
+				data.append(",");
+				data.append(in.getInt());
+				break;
+
+			case CODEC_SCORE_REQUEST:
+				data.append(in.getInt());
+
+				if (in.hasRemaining()) {
+					data.append(",");
+					data.append(in.get());
+				}
+				break;
+
+			case CODEC_SPRITE_DATA:
+				data.append(in.getShort());
+				data.append(",");
+				data.append(in.getShort());
+				data.append(",");
+				data.append(DIRECTIONS[in.get()]);
+				data.append(",");
+				data.append(DIRECTIONS[in.get()]);
+				break;
+
+			default:
+				data.append(getString(in));
+				break;
+		}
+
+		if (in.hasRemaining()) throw new IllegalArgumentException("Trailing payload data");
+
+		return data.toString();
+	}
+
+	/**
+	 * Write a length-prefixed UTF-8 string to the buffer.
+	 * @param out The buffer to write to.
+	 * @param value The string to write.
+	 */
+	private static void putString(ByteBuffer out, String value) {
+		byte[] bytes = value.getBytes(CHARSET);
+
+		out.putShort((short)bytes.length);
+		out.put(bytes);
+	}
+
+	/**
+	 * Read a length-prefixed UTF-8 string from the buffer.
+	 * @param in The buffer to read from.
+	 * @return The string.
+	 */
+	private static String getString(ByteBuffer in) {
+		int length = in.getShort() & 0xFFFF;
+		byte[] bytes = new byte[length];
+
+		in.get(bytes);
+
+		return new String(bytes, CHARSET);
+	}
+
+	/**
+	 * Get the wire number of a sprite direction.
+	 * @param name The name of the direction.
+	 * @return The number of the direction.
+	 */
+	private static byte getDirection(String name) {
+		for (int i = 0; i < DIRECTIONS.length; ++i) {
+			if (DIRECTIONS[i].equals(name)) return (byte)i;
+		}
+
+		throw new IllegalArgumentException("Unknown direction " + name);
+	}
+}
@@ -0,0 +1,121 @@
+package pacserver;
+
+/**
+ * Index of game sessions that have open seats, grouped by game ID.  Sessions
+ * are offered in the order in which they were created, so the oldest session
+ * of a game fills up first.  Synchronized so that game loops can remove
+ * sessions as they fill up or end.
+ *
+ * The sessions of each game are kept in a doubly-linked list, and each
+ * session holds its own entry in the list, so removing a session never has
+ * to search for it.
+ */
+public class SessionIndex {
+
+	// Members
+	private IntMap<Entry> mFirst;
+	private IntMap<Entry> mLast;
+
+	/**
+	 * Constructor.
+	 */
+	public SessionIndex() {
+		mFirst = new IntMap<Entry>();
+		mLast = new IntMap<Entry>();
+	}
+
+	/**
+	 * Add a session that has open seats.  Has no effect if the session is
+	 * already in the index.
+	 * @param session The session to add.
+	 */
+	public synchronized void add(GameSession session) {
+		if (session.getIndexEntry() != null) return;
+
+		Entry entry = new Entry(session);
+		Entry last = mLast.get(session.getGameId());
+
+		if (last == null) {
+			mFirst.put(session.getGameId(), entry);
+		} else {
+			last.mNext = entry;
+			entry.mPrev = last;
+		}
+
+		mLast.put(session.getGameId(), entry);
+		session.setIndexEntry(entry);
+	}
+
+	/**
+	 * Remove a session that no longer has open seats.  Has no effect if the
+	 * session is not in the index.
+	 * @param session The session to remove.
+	 */
+	public synchronized void remove(GameSession session) {
+		Entry entry = session.getIndexEntry();
+
+		if (entry == null) return;
+
+		int gameId = session.getGameId();
+
+		if (entry.mPrev == null) {
+			if (entry.mNext == null) {
+				mFirst.remove(gameId);
+			} else {
+				mFirst.put(gameId, entry.mNext);
+			}
+		} else {
+			entry.mPrev.mNext = entry.mNext;
+		}
+
+		if (entry.mNext == null) {
+			if (entry.mPrev == null) {
+				mLast.remove(gameId);
+			} else {
+				mLast.put(gameId, entry.mPrev);
+			}
+		} else {
+			entry.mNext.mPrev = entry.mPrev;
+		}
+
+		entry.mPrev = null;
+		entry.mNext = null;
+		session.setIndexEntry(null);
+	}
+
+	/**
+	 * Get the oldest session of a game that has open seats.  The session is
+	 * not removed from the index.
+	 * @param gameId The ID of the game.
+	 * @return The session, or null if no session of the game has open seats.
+	 */
+	public synchronized GameSession get(int gameId) {
+		Entry first = mFirst.get(gameId);
+
+		if (first == null) return null;
+
+		return first.mSession;
+	}
+
+	/**
+	 * A session's place in the index.  Held by the session whilst it is in
+	 * the index, and only read or changed with the index locked.
+	 */
+	static class Entry {
+
+		// Members
+		private GameSession mSession;
+		private Entry mNext;
+		private Entry mPrev;
+
+		/**
+		 * Constructor.
+		 * @param session The session in the index.
+		 */
+		private Entry(GameSession session) {
+			mSession = session;
+			mNext = null;
+			mPrev = null;
+		}
+	}
+}
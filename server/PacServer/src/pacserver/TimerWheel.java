@@ -0,0 +1,255 @@
+package pacserver;
+
+import java.util.*;
+
+/**
+ * Hashed timer wheel shared by all threads in the server.  Timeouts are
+ * hashed into a fixed number of buckets by the tick on which they expire, so
+ * scheduling and cancelling are constant-time operations regardless of the
+ * number of pending timeouts.  Each tick only the timeouts in one bucket are
+ * examined.  Timeouts further away than one revolution of the wheel remain in
+ * their bucket for the appropriate number of rounds.
+ *
+ * Expired tasks are run on the wheel's own thread, so they must be thread
+ * safe and should do as little work as possible; typically they flag their
+ * owner and wake it.
+ */
+public class TimerWheel extends Thread {
+
+	// Constants
+
+	/** Length of a single tick in milliseconds */
+	public static final long TICK_DURATION = 100;
+
+	/** Number of buckets in the wheel.  Must be a power of two. */
+	public static final int WHEEL_SIZE = 512;
+
+	// Members
+	private Timeout[] mBuckets;
+	private int mMask;
+	private long mTickDuration;
+	private long mStartTime;
+	private long mTick;
+	private int mSize;
+
+	private static TimerWheel mTimerWheel;
+
+	/**
+	 * Initialise the timer wheel.
+	 */
+	public static void init() {
+		mTimerWheel = new TimerWheel(TICK_DURATION, WHEEL_SIZE);
+		mTimerWheel.start();
+	}
+
+	/**
+	 * Get a pointer to the timer wheel singleton.
+	 * @return A pointer to the timer wheel singleton.
+	 */
+	public static TimerWheel getTimerWheel() {
+		return mTimerWheel;
+	}
+
+	/**
+	 * Constructor.
+	 * @param tickDuration Length of a tick in milliseconds.
+	 * @param wheelSize Number of buckets in the wheel.  Must be a power of two.
+	 */
+	public TimerWheel(long tickDuration, int wheelSize) {
+		super("TimerWheel");
+		setDaemon(true);
+
+		mBuckets = new Timeout[wheelSize];
+		mMask = wheelSize - 1;
+		mTickDuration = tickDuration;
+		mStartTime = System.currentTimeMillis();
+		mTick = 0;
+		mSize = 0;
+	}
+
+	/**
+	 * Schedule a task to run after the specified delay.
+	 * @param task The task to run.
+	 * @param delay The delay in milliseconds.
+	 * @return The timeout, which can be used to cancel the task.
+	 */
+	public synchronized Timeout schedule(Runnable task, long delay) {
+
+		long time = System.currentTimeMillis() - mStartTime;
+
+		// No timeouts existed, so ticks skipped whilst asleep can be ignored
+		if (mSize == 0) mTick = Math.max(mTick, time / mTickDuration);
+
+		// Work out the tick on which the timeout expires, rounding up so that
+		// tasks never run early
+		long expiryTime = time + Math.max(0, delay);
+		long expiryTick = Math.max(mTick, (expiryTime + mTickDuration - 1) / mTickDuration);
+
+		Timeout timeout = new Timeout(task, (expiryTick - mTick) / mBuckets.length);
+		link(timeout, (int)(expiryTick & mMask));
+
+		// Wake the wheel if it was sleeping with nothing to do
+		if (mSize++ == 0) notify();
+
+		return timeout;
+	}
+
+	/**
+	 * Get the number of pending timeouts.
+	 * @return The number of pending timeouts.
+	 */
+	public synchronized int size() { return mSize; }
+
+	/**
+	 * Cancel a timeout.
+	 * @param timeout The timeout to cancel.
+	 */
+	private synchronized void cancel(Timeout timeout) {
+		timeout.mCancelled = true;
+
+		if (timeout.mBucket >= 0) {
+			unlink(timeout);
+			mSize--;
+		}
+	}
+
+	/**
+	 * Add a timeout to the head of a bucket.
+	 * @param timeout The timeout to add.
+	 * @param bucket The index of the bucket.
+	 */
+	private void link(Timeout timeout, int bucket) {
+		timeout.mBucket = bucket;
+		timeout.mPrev = null;
+		timeout.mNext = mBuckets[bucket];
+
+		if (timeout.mNext != null) timeout.mNext.mPrev = timeout;
+
+		mBuckets[bucket] = timeout;
+	}
+
+	/**
+	 * Remove a timeout from its bucket.
+	 * @param timeout The timeout to remove.
+	 */
+	private void unlink(Timeout timeout) {
+		if (timeout.mPrev != null) {
+			timeout.mPrev.mNext = timeout.mNext;
+		} else {
+			mBuckets[timeout.mBucket] = timeout.mNext;
+		}
+
+		if (timeout.mNext != null) timeout.mNext.mPrev = timeout.mPrev;
+
+		timeout.mBucket = -1;
+		timeout.mNext = null;
+		timeout.mPrev = null;
+	}
+
+	/**
+	 * Advance the wheel one tick at a time, running expired tasks.  Sleeps
+	 * until the next tick is due, or indefinitely if there are no timeouts.
+	 */
+	@Override
+	public void run() {
+		ArrayList<Timeout> expired = new ArrayList<Timeout>();
+
+		while (true) {
+			try {
+				synchronized (this) {
+
+					// Nothing to do; sleep until something is scheduled
+					while (mSize == 0) {
+						wait();
+					}
+
+					long delay = mStartTime + (mTick * mTickDuration) - System.currentTimeMillis();
+
+					if (delay > 0) {
+						wait(delay);
+						continue;
+					}
+
+					collectExpired(expired);
+					mTick++;
+				}
+			} catch (InterruptedException e) {
+				return;
+			}
+
+			// Run tasks outside of the lock so that they can schedule new
+			// timeouts and take other locks safely
+			for (int i = 0; i < expired.size(); ++i) {
+				Timeout timeout = expired.get(i);
+
+				if (!timeout.mCancelled) timeout.mTask.run();
+			}
+
+			expired.clear();
+		}
+	}
+
+	/**
+	 * Remove all timeouts that expire on the current tick from their bucket.
+	 * Timeouts due on a later revolution of the wheel have their round count
+	 * reduced.
+	 * @param expired List to add expired timeouts to.
+	 */
+	private void collectExpired(ArrayList<Timeout> expired) {
+		Timeout timeout = mBuckets[(int)(mTick & mMask)];
+
+		while (timeout != null) {
+			Timeout next = timeout.mNext;
+
+			if (timeout.mRounds > 0) {
+				timeout.mRounds--;
+			} else {
+				unlink(timeout);
+				mSize--;
+				expired.add(timeout);
+			}
+
+			timeout = next;
+		}
+	}
+
+	/**
+	 * A task scheduled on the wheel.
+	 */
+	public class Timeout {
+
+		// Members
+		private Runnable mTask;
+		private long mRounds;
+		private int mBucket;
+		private Timeout mNext;
+		private Timeout mPrev;
+		private volatile boolean mCancelled;
+
+		/**
+		 * Constructor.
+		 * @param task The task to run when the timeout expires.
+		 * @param rounds Number of revolutions of the wheel before expiry.
+		 */
+		private Timeout(Runnable task, long rounds) {
+			mTask = task;
+			mRounds = rounds;
+			mBucket = -1;
+			mCancelled = false;
+		}
+
+		/**
+		 * Cancel the timeout.  The task will not run unless it is already
+		 * running.
+		 */
+		public void cancel() {
+			TimerWheel.this.cancel(this);
+		}
+
+		/**
+		 * Check if the timeout has been cancelled.
+		 * @return True if the timeout has been cancelled.
+		 */
+		public boolean isCancelled() { return mCancelled; }
+	}
+}
@@ -0,0 +1,67 @@
+package pacserver;
+
+import java.lang.reflect.*;
+import java.util.concurrent.*;
+
+/**
+ * Starts tasks on virtual threads where the runtime supports them.  Virtual
+ * threads are looked up by reflection so that the server still builds and
+ * runs on older runtimes; there, tasks run on a cached pool of ordinary
+ * threads instead.
+ */
+public class VirtualThreads {
+
+	// Members
+	private static Method mStartVirtualThread = findStartVirtualThread();
+	private static ExecutorService mFallbackPool = null;
+
+	/**
+	 * Constructor.  Private to prevent creation.
+	 */
+	private VirtualThreads() { }
+
+	/**
+	 * Check if tasks are started on virtual threads.
+	 * @return True if the runtime supports virtual threads.
+	 */
+	public static boolean isAvailable() { return mStartVirtualThread != null; }
+
+	/**
+	 * Run a task on a thread of its own.
+	 * @param task The task to run.
+	 */
+	public static void start(Runnable task) {
+		if (mStartVirtualThread != null) {
+			try {
+				mStartVirtualThread.invoke(null, task);
+				return;
+			} catch (Exception e) {
+				System.err.println("Could not start virtual thread: " + e);
+			}
+		}
+
+		getFallbackPool().execute(task);
+	}
+
+	/**
+	 * Get the pool that runs tasks when virtual threads are unavailable.
+	 * @return The fallback pool.
+	 */
+	private static synchronized ExecutorService getFallbackPool() {
+		if (mFallbackPool == null) mFallbackPool = Executors.newCachedThreadPool();
+
+		return mFallbackPool;
+	}
+
+	/**
+	 * Find the method that starts a virtual thread.
+	 * @return The method, or null if the runtime has no virtual threads.
+	 */
+	private static Method findStartVirtualThread() {
+		try {
+			return Thread.class.getMethod("startVirtualThread", Runnable.class);
+		} catch (NoSuchMethodException e) {
+			return null;
+		}
+	}
+}